@@ -0,0 +1,185 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * The operations the JMH benchmarks in huff.jmh time, each over one
+ * input. JMH generates no code for benchmarks in the default package,
+ * and a class in a named package cannot name the codec's classes, which
+ * are all in the default package, so HuffBenchmarks looks this class up
+ * by name once per trial and calls each operation through the
+ * LongSupplier create gives for it. Every operation returns a value
+ * that depends on its work, for JMH to consume.
+ * <P>
+ * Buffers, codecs and codebooks are built by create, outside the timed
+ * calls. The operations are:
+ * <ul>
+ * <li>compress, decompress: HuffProcessor.compress and decompress
+ * through streams over byte arrays</li>
+ * <li>codecCompress, codecDecompress: a reused HuffCodec</li>
+ * <li>readBits, writeBits: BitInputStream and BitOutputStream alone, in
+ * widths cycling through 1 to 17 bits</li>
+ * <li>codebook: optimal code lengths for the input's counts, limited if
+ * need be, then canonical codes</li>
+ * <li>treeHeaderWrite, treeHeaderRead, canonicalHeaderWrite,
+ * canonicalHeaderRead: the header for that codebook, on its own</li>
+ * </ul>
+ */
+
+public class HuffWorkloads {
+
+	private static final int HEADER_CAPACITY = 1 << 12;
+
+	/**
+	 * @param data is the input every operation works on
+	 * @return each operation by name
+	 */
+	public static Map<String, LongSupplier> create(byte[] data) {
+
+		Map<String, LongSupplier> workloads = new HashMap<>();
+		byte[] compressed = compress(data);
+		workloads.put("compress", () -> compress(data).length);
+		workloads.put("decompress", () -> decompress(compressed).length);
+
+		HuffCodec codec = new HuffCodec();
+		byte[] coded = new byte[HuffCodec.maxCompressedLength(data.length)];
+		int codedLength = codec.compress(data, 0, data.length, coded);
+		byte[] decoded = new byte[data.length];
+		workloads.put("codecCompress", () -> codec.compress(data, 0, data.length, coded));
+		workloads.put("codecDecompress", () -> codec.decompress(coded, 0, codedLength, decoded, 0));
+
+		workloads.put("readBits", () -> readBits(data));
+		workloads.put("writeBits", () -> writeBits(data));
+
+		long[] counts = counts(data);
+		HuffCodebook codings = codebook(counts);
+		workloads.put("codebook", () -> codebook(counts).myLengths[HuffProcessor.PSEUDO_EOF]);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_CAPACITY);
+		BitOutputStream headerOut = new BitOutputStream(header);
+		BitInputStream headerIn = new BitInputStream(header);
+		HuffTreeReader reader = new HuffTreeReader();
+		ByteBuffer tree = writeHeader(codings, false);
+		ByteBuffer canonical = writeHeader(codings, true);
+		workloads.put("treeHeaderWrite", () -> {
+			header.clear();
+			headerOut.reuse(header);
+			HuffProcessor.writeTreeHeader(codings, headerOut);
+			headerOut.flush();
+			return header.position();
+		});
+		workloads.put("treeHeaderRead", () -> {
+			headerIn.reuse(tree.duplicate());
+			reader.read(headerIn);
+			return headerIn.bitsRead();
+		});
+		workloads.put("canonicalHeaderWrite", () -> {
+			header.clear();
+			headerOut.reuse(header);
+			HuffProcessor.writeCanonicalHeader(codings, headerOut);
+			headerOut.flush();
+			return header.position();
+		});
+		workloads.put("canonicalHeaderRead", () -> {
+			headerIn.reuse(canonical.duplicate());
+			return HuffProcessor.readCanonicalHeader(headerIn).myCodes[HuffProcessor.PSEUDO_EOF];
+		});
+		return workloads;
+	}
+
+	private static byte[] compress(byte[] data) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new HuffProcessor().compress(new BitInputStream(new ByteArrayInputStream(data)), new BitOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private static byte[] decompress(byte[] data) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new HuffProcessor().decompress(new BitInputStream(new ByteArrayInputStream(data)), new BitOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Read all of data in widths cycling through 1 to 17 bits, as a
+	 * decoder's mix of short and long reads would
+	 * @return sum of the values read
+	 */
+	private static long readBits(byte[] data) {
+		BitInputStream in = new BitInputStream(new ByteArrayInputStream(data));
+		long sum = 0;
+		int width = 1;
+		while (true) {
+			int value = in.readBits(width);
+			if (value == -1) break;
+			sum += value;
+			width = width % 17 + 1;
+		}
+		in.close();
+		return sum;
+	}
+
+	/**
+	 * Write as many bits as data holds in widths cycling through 1 to 17
+	 * @return bits written
+	 */
+	private static long writeBits(byte[] data) {
+		BitOutputStream out = new BitOutputStream(new ByteArrayOutputStream(data.length + 16));
+		long remaining = 8L * data.length;
+		int width = 1;
+		int k = 0;
+		while (remaining >= width) {
+			out.writeBits(width, data[k] & ((1 << width) - 1));
+			remaining -= width;
+			k = (k + 1) % data.length;
+			width = width % 17 + 1;
+		}
+		out.close();
+		return out.bitsWritten();
+	}
+
+	/**
+	 * @return counts of each byte in data, with one PSEUDO_EOF
+	 */
+	private static long[] counts(byte[] data) {
+		long[] counts = new long[HuffProcessor.ALPH_SIZE + 1];
+		for (byte b : data) {
+			counts[b & 0xff]++;
+		}
+		counts[HuffProcessor.PSEUDO_EOF] = 1;
+		return counts;
+	}
+
+	/**
+	 * Build a codebook from counts as a compressed block gets one: optimal
+	 * lengths, limited to MAX_CODE_LENGTH if need be, then canonical codes
+	 */
+	private static HuffCodebook codebook(long[] counts) {
+		byte[] lengths = HuffCodebook.optimalLengths(counts);
+		for (byte length : lengths) {
+			if (length > HuffCodebook.MAX_CODE_LENGTH) {
+				lengths = HuffCodebook.limitedLengths(counts, HuffCodebook.MAX_CODE_LENGTH);
+				break;
+			}
+		}
+		return HuffCodebook.canonical(lengths);
+	}
+
+	/**
+	 * @return the tree header, or the canonical header, for codings,
+	 * flipped for reading
+	 */
+	private static ByteBuffer writeHeader(HuffCodebook codings, boolean canonical) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_CAPACITY);
+		BitOutputStream out = new BitOutputStream(header);
+		if (canonical) {
+			HuffProcessor.writeCanonicalHeader(codings, out);
+		}
+		else {
+			HuffProcessor.writeTreeHeader(codings, out);
+		}
+		out.flush();
+		header.flip();
+		return header;
+	}
+}
@@ -0,0 +1,143 @@
+package huff.jmh;
+
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks for the codec. Build and run from the top of the tree:
+ * <pre>
+ *   mvn -B package
+ *   java -jar jmh/target/benchmarks.jar
+ *   java -jar jmh/target/benchmarks.jar -p input=data/melville.txt,skewed -prof gc
+ * </pre>
+ * input is skewed (bytes with a geometric distribution, so codes are
+ * short and trees deep), uniform (random bytes, which do not compress)
+ * or the path of a file. Each benchmark reports the average time of one
+ * operation over the whole input, with JMH's error over forked JVMs;
+ * -prof gc adds bytes allocated per operation.
+ * <P>
+ * The operations themselves are in the default-package HuffWorkloads,
+ * next to the codec's classes; see there for what each one does.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@State(Scope.Thread)
+public class HuffBenchmarks {
+
+	private static final int SYNTHETIC_SIZE = 1 << 20;
+
+	@Param({ "skewed", "uniform" })
+	public String input;
+
+	private LongSupplier myCompress, myDecompress, myCodecCompress, myCodecDecompress;
+	private LongSupplier myReadBits, myWriteBits, myCodebook;
+	private LongSupplier myTreeHeaderWrite, myTreeHeaderRead, myCanonicalHeaderWrite, myCanonicalHeaderRead;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Map<String, LongSupplier> workloads = workloads(read(input));
+		myCompress = workloads.get("compress");
+		myDecompress = workloads.get("decompress");
+		myCodecCompress = workloads.get("codecCompress");
+		myCodecDecompress = workloads.get("codecDecompress");
+		myReadBits = workloads.get("readBits");
+		myWriteBits = workloads.get("writeBits");
+		myCodebook = workloads.get("codebook");
+		myTreeHeaderWrite = workloads.get("treeHeaderWrite");
+		myTreeHeaderRead = workloads.get("treeHeaderRead");
+		myCanonicalHeaderWrite = workloads.get("canonicalHeaderWrite");
+		myCanonicalHeaderRead = workloads.get("canonicalHeaderRead");
+	}
+
+	@Benchmark
+	public long compress() {
+		return myCompress.getAsLong();
+	}
+
+	@Benchmark
+	public long decompress() {
+		return myDecompress.getAsLong();
+	}
+
+	@Benchmark
+	public long codecCompress() {
+		return myCodecCompress.getAsLong();
+	}
+
+	@Benchmark
+	public long codecDecompress() {
+		return myCodecDecompress.getAsLong();
+	}
+
+	@Benchmark
+	public long readBits() {
+		return myReadBits.getAsLong();
+	}
+
+	@Benchmark
+	public long writeBits() {
+		return myWriteBits.getAsLong();
+	}
+
+	@Benchmark
+	public long codebook() {
+		return myCodebook.getAsLong();
+	}
+
+	@Benchmark
+	public long treeHeaderWrite() {
+		return myTreeHeaderWrite.getAsLong();
+	}
+
+	@Benchmark
+	public long treeHeaderRead() {
+		return myTreeHeaderRead.getAsLong();
+	}
+
+	@Benchmark
+	public long canonicalHeaderWrite() {
+		return myCanonicalHeaderWrite.getAsLong();
+	}
+
+	@Benchmark
+	public long canonicalHeaderRead() {
+		return myCanonicalHeaderRead.getAsLong();
+	}
+
+	/**
+	 * @return the operations of HuffWorkloads over data, found by name
+	 * since the default package cannot be imported
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, LongSupplier> workloads(byte[] data) throws ReflectiveOperationException {
+		return (Map<String, LongSupplier>) Class.forName("HuffWorkloads")
+				.getMethod("create", byte[].class).invoke(null, (Object) data);
+	}
+
+	/**
+	 * @return the bytes input names: a synthetic input or a file's contents
+	 */
+	private static byte[] read(String input) throws Exception {
+		Random random = new Random(1);
+		byte[] data = new byte[SYNTHETIC_SIZE];
+		if (input.equals("skewed")) {
+			for (int k = 0; k < data.length; k++) {
+				data[k] = (byte) Math.min(255, Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE));
+			}
+			return data;
+		}
+		if (input.equals("uniform")) {
+			random.nextBytes(data);
+			return data;
+		}
+		return Files.readAllBytes(Paths.get(input));
+	}
+}
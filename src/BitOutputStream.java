@@ -16,7 +16,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 
 public class BitOutputStream extends OutputStream {
@@ -36,7 +38,8 @@ public class BitOutputStream extends OutputStream {
 			0x3fffffffffffffffl, 0x7fffffffffffffffl, 0xffffffffffffffffl };
 	
 	private OutputStream source;
-	private int bitsWritten, available;
+	private long bitsWritten;
+	private int available;
 	private long bitBuffer;
 	private ByteBuffer buffer;
 	private WritableByteChannel output;
@@ -73,6 +76,57 @@ public class BitOutputStream extends OutputStream {
 		initialize(out);
 	}
 	
+	/**
+	 * Create a BitOutputStream that writes to channel from a direct
+	 * buffer, with no OutputStream in between. The channel must be in
+	 * blocking mode. Closing the stream flushes it but leaves the channel
+	 * open for its owner to close.
+	 * @param channel is where bits will be written
+	 * @param bufferSize is the size of the direct buffer, at least 8
+	 */
+	public BitOutputStream(WritableByteChannel channel, int bufferSize) {
+		if (bufferSize < Long.BYTES) {
+			throw new RuntimeException("Illegal argument: bufferSize must be at least " + Long.BYTES);
+		}
+		source = null;
+		bitsWritten = 0;
+		available = 64;
+		bitBuffer = 0;
+		output = channel;
+		buffer = ByteBuffer.allocateDirect(bufferSize);
+	}
+	
+	/**
+	 * Create a BitOutputStream that writes into buffer itself, from its
+	 * position up to its limit, with no channel or copy behind it, e.g.,
+	 * into a caller's byte array wrapped once. Writing past the limit
+	 * throws BufferOverflowException. Bytes are written big-endian, so
+	 * buffer must have that byte order.
+	 * @param buffer receives the bits; after flush its position is just
+	 * past the last byte written
+	 */
+	public BitOutputStream(ByteBuffer buffer) {
+		reuse(buffer);
+	}
+	
+	/**
+	 * Start writing into buffer as a stream made by BitOutputStream(buffer)
+	 * would, dropping anything not flushed, so one stream can serve many
+	 * small outputs without allocating
+	 * @param buffer receives the bits, from its position up to its limit
+	 */
+	public void reuse(ByteBuffer buffer) {
+		if (buffer.order() != ByteOrder.BIG_ENDIAN) {
+			throw new HuffException("buffer must be big-endian");
+		}
+		source = null;
+		output = null;
+		bitsWritten = 0;
+		available = 64;
+		bitBuffer = 0;
+		this.buffer = buffer;
+	}
+	
 	private void initialize(OutputStream out) {
 		source = out;
 		bitsWritten = 0;
@@ -87,7 +141,7 @@ public class BitOutputStream extends OutputStream {
 	 * of this BitOUtputStream.
 	 * @return number of bits written
 	 */
-	public int bitsWritten() {
+	public long bitsWritten() {
 		return bitsWritten;
 	}
 	
@@ -100,20 +154,93 @@ public class BitOutputStream extends OutputStream {
 		emptyBuffer();
 	}
 	
+	/**
+	 * Write every complete byte written so far through to the underlying
+	 * stream and flush it, keeping a final partial byte buffered. Unlike
+	 * flush() nothing is padded, so this can be called mid-stream, e.g.,
+	 * to bound latency when writing to a socket or pipe.
+	 */
+	public void flushBytes() {
+		while (available <= 64 - BYTE_SIZE) {
+			if (!buffer.hasRemaining()) {
+				emptyBuffer();
+			}
+			buffer.put((byte) (bitBuffer >>> 56));
+			bitBuffer <<= BYTE_SIZE;
+			available += BYTE_SIZE;
+		}
+		emptyBuffer();
+		if (source == null) return;
+		try {
+			source.flush();
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+	
+	/**
+	 * Write zero bits up to the next byte boundary, if not on one
+	 */
+	public void alignToByte() {
+		if (available % BYTE_SIZE != 0) {
+			writeBits(available % BYTE_SIZE, 0);
+		}
+	}
+	
+	/**
+	 * Writes count bytes of channel, starting at position, with
+	 * FileChannel.transferTo, so the bytes can go from file to output
+	 * without being copied through this stream's buffers
+	 * @param channel holds the bytes to write
+	 * @param position is the offset in channel of the first byte
+	 * @param count is the number of bytes to write
+	 * @throws HuffException if this stream is not on a byte boundary
+	 */
+	public void transferFrom(FileChannel channel, long position, long count) {
+		if (output == null) {
+			throw new HuffException("transferFrom needs a stream with a channel");
+		}
+		if (available % BYTE_SIZE != 0) {
+			throw new HuffException("transferFrom needs a byte boundary");
+		}
+		emptyBitBufferExact();
+		emptyBuffer();
+		try {
+			while (count > 0) {
+				long written = channel.transferTo(position, count, output);
+				if (written <= 0 && position >= channel.size()) {
+					throw new HuffException("file ends before " + count + " more bytes");
+				}
+				position += written;
+				count -= written;
+				bitsWritten += BYTE_SIZE * written;
+			}
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+	
 	/**
 	 * Close this stream and all the streams/channels used
-	 * by this stream
+	 * by this stream, except a channel it was made from
 	 */
 	public void close() {
 		try {
 			flush();
-			output.close();
-			source.close();
 		}
-		catch (IOException io) {
-			throw new RuntimeException(io);
+		finally {
+			try {
+				if (source != null) {
+					output.close();
+					source.close();
+				}
+			}
+			catch (IOException io) {
+				throw new RuntimeException(io);
+			}
 		}
-		
 	}
 	
 	/**
@@ -125,6 +252,40 @@ public class BitOutputStream extends OutputStream {
 		throw new HuffException("Do Not Call This Method, call writeBits");
 	}
 	
+	/**
+	 * Writes len bytes of b. When this stream is byte-aligned the bytes
+	 * are copied in bulk rather than passed through the bit buffer.
+	 * @param b holds the bytes written
+	 * @param off is the index of the first byte written
+	 * @param len is the number of bytes written
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (available % BYTE_SIZE != 0) {
+			for (int k = off; k < off + len; k++) {
+				writeBits(BYTE_SIZE, b[k]);
+			}
+			return;
+		}
+		
+		bitsWritten += BYTE_SIZE * (long) len;
+		emptyBitBufferExact();
+		if (len <= buffer.remaining() || output == null) {
+			buffer.put(b, off, len);
+			return;
+		}
+		emptyBuffer();
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(b, off, len);
+			while (bytes.hasRemaining()) {
+				output.write(bytes);
+			}
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+	
 	/**
 	 * Writes the right-most/least significant numBits of
 	 * value to this stream
@@ -152,8 +313,13 @@ public class BitOutputStream extends OutputStream {
 	}
 	
 	private void emptyBitBuffer() {
-		if (!buffer.hasRemaining()) {
+		if (buffer.remaining() < Long.BYTES) {
 			emptyBuffer();
+			if (output == null) {   // writing in place near the limit, a byte at a time
+				available = 0;
+				emptyBitBufferExact();
+				return;
+			}
 		}
 		
 		buffer.putLong(bitBuffer);
@@ -162,7 +328,7 @@ public class BitOutputStream extends OutputStream {
 	}
 	
 	private void emptyBitBufferExact() {
-		if (!buffer.hasRemaining()) {
+		if (buffer.remaining() < Long.BYTES) {
 			emptyBuffer();
 		}
 		
@@ -174,9 +340,14 @@ public class BitOutputStream extends OutputStream {
 	}
 	
 	private void emptyBuffer() {
+		if (output == null) {
+			return;   // the buffer is the destination
+		}
 		try {
 			buffer.flip();
-			output.write(buffer);
+			while (buffer.hasRemaining()) {
+				output.write(buffer);
+			}
 			buffer.clear();
 		}
 		catch (IOException io) {
@@ -2,7 +2,6 @@ import java.io.*;
 
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
-import javax.swing.ProgressMonitorInputStream;
 import javax.swing.SwingUtilities;
 
 public class Diff
@@ -22,36 +21,21 @@ public class Diff
         JOptionPane.showMessageDialog(null, message,"Diff Output",
                 JOptionPane.INFORMATION_MESSAGE);
     }
+    
+    /**
+     * Compares two files with FileDiff, which maps them and compares
+     * large chunks at a time
+     * @return true if the files are the same
+     */
     public static boolean doDiffer(File[] files){
         try {
-            ProgressMonitorInputStream stream1 = 
-                new ProgressMonitorInputStream(
-                        null,
-                        "reading "+files[0].getName(),
-                        new FileInputStream(files[0]));
-            ProgressMonitorInputStream stream2 = 
-                new ProgressMonitorInputStream(
-                        null,
-                        "reading "+files[1].getName(),
-                        new FileInputStream(files[1]));
-            BitInputStream b1 = new BitInputStream(stream1);
-            BitInputStream b2 = new BitInputStream(stream2);
-            while (true) {
-                int x = b1.readBits(8);
-                int y = b2.readBits(8);
-                if (x == -1) return y == -1;
-                if (y == -1) return false;
-                if (x != y) return false;
-            }
-            // never reached
-            
+            return FileDiff.mismatch(files[0], files[1]) == -1;
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(null,"trouble reading","Diff Error",
                     JOptionPane.ERROR_MESSAGE);
             return false;
         }
-      
     }
     
     public static File[] doDiffWork() {
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Headless file comparison for checking round trips, e.g., that
+ * decompressing a compressed file gives back the original, from the
+ * command line (java HuffMain diff) or from tests, with no dialogs.
+ * <P>
+ * mismatch maps both files in windows of up to MAP_WINDOW bytes and
+ * compares them CHUNK_SIZE bytes at a time: each chunk is copied from
+ * the page cache into an array with one bulk get and compared with
+ * Arrays.mismatch, which the JIT compiles to vector instructions, so
+ * multi-gigabyte files compare at memory speed rather than a byte per
+ * readBits call.
+ * <P>
+ * checksum computes a file's CRC32C with the file split into regions,
+ * one task per region on a pool, each mapping and checksumming its own
+ * region; the regions' CRCs are then combined in order into the CRC of
+ * the whole file, the same value a single pass would give.
+ */
+
+public class FileDiff {
+
+	public static final int CHUNK_SIZE = 1 << 18;
+	private static final int MAP_WINDOW = 1 << 30;
+	private static final int MIN_REGION = 1 << 23;
+	private static final long CRC32C_POLYNOMIAL = 0x82f63b78L;   // reversed
+
+	/**
+	 * Compare two files byte by byte
+	 * @param a is the first file
+	 * @param b is the second file
+	 * @return offset of the first byte that differs, the length of the
+	 * shorter file if it is a prefix of the other, or -1 if the files are
+	 * the same
+	 */
+	public static long mismatch(File a, File b) throws IOException {
+		try (FileChannel first = FileChannel.open(a.toPath(), StandardOpenOption.READ);
+				FileChannel second = FileChannel.open(b.toPath(), StandardOpenOption.READ)) {
+			return mismatch(first, second);
+		}
+	}
+
+	/**
+	 * Compare two files byte by byte, from the start of each; the
+	 * channels' positions are not moved
+	 * @return offset of the first byte that differs, the length of the
+	 * shorter file if it is a prefix of the other, or -1 if the files are
+	 * the same
+	 */
+	public static long mismatch(FileChannel a, FileChannel b) throws IOException {
+
+		long sizeA = a.size(), sizeB = b.size();
+		long common = Math.min(sizeA, sizeB);
+		byte[] chunkA = new byte[(int) Math.min(CHUNK_SIZE, common)];
+		byte[] chunkB = new byte[chunkA.length];
+
+		for (long window = 0; window < common; window += MAP_WINDOW) {
+			int length = (int) Math.min(MAP_WINDOW, common - window);
+			ByteBuffer bufferA = a.map(FileChannel.MapMode.READ_ONLY, window, length);
+			ByteBuffer bufferB = b.map(FileChannel.MapMode.READ_ONLY, window, length);
+			while (bufferA.hasRemaining()) {
+				int start = bufferA.position();
+				int count = Math.min(chunkA.length, bufferA.remaining());
+				bufferA.get(chunkA, 0, count);
+				bufferB.get(chunkB, 0, count);
+				int offset = Arrays.mismatch(chunkA, 0, count, chunkB, 0, count);
+				if (offset >= 0) {
+					return window + start + offset;
+				}
+			}
+		}
+		return sizeA == sizeB ? -1 : common;
+	}
+
+	/**
+	 * Compute the CRC32C of a file on the common ForkJoinPool
+	 * @see #checksum(FileChannel, ExecutorService)
+	 */
+	public static long checksum(File file) throws IOException {
+		return checksum(file, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compute the CRC32C of a file on pool
+	 * @see #checksum(FileChannel, ExecutorService)
+	 */
+	public static long checksum(File file, ExecutorService pool) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return checksum(channel, pool);
+		}
+	}
+
+	/**
+	 * Compute the CRC32C of a file, in parallel regions of at least
+	 * MIN_REGION bytes on pool
+	 * @param channel is the file, which is read without moving its position
+	 * @param pool runs the region tasks
+	 * @return the CRC32C of every byte of the file, as CRC32C.getValue
+	 * gives it
+	 */
+	public static long checksum(FileChannel channel, ExecutorService pool) throws IOException {
+
+		long size = channel.size();
+		int threads = pool instanceof ForkJoinPool ? ((ForkJoinPool) pool).getParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		long region = Math.min(MAP_WINDOW, Math.max(MIN_REGION, (size + threads - 1) / threads));
+
+		List<Callable<Long>> tasks = new ArrayList<>();
+		for (long start = 0; start < size; start += region) {
+			long position = start;
+			long length = Math.min(region, size - start);
+			tasks.add(() -> {
+				CRC32C crc = new CRC32C();
+				crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+				return crc.getValue();
+			});
+		}
+
+		long crc = new CRC32C().getValue();
+		List<Future<Long>> futures = Futures.invokeAll(pool, tasks);
+		for (int k = 0; k < futures.size(); k++) {
+			long length = Math.min(region, size - k * region);
+			crc = combine(crc, Futures.get(futures.get(k)), length);
+		}
+		return crc;
+	}
+
+	/**
+	 * Combine the CRC32Cs of two consecutive pieces of data into the CRC32C
+	 * of both, as zlib's crc32_combine does for CRC-32: appending length
+	 * zero bytes to the first piece multiplies its CRC by a matrix over
+	 * GF(2), which is raised to the power length by repeated squaring
+	 * @param first is the CRC32C of the first piece
+	 * @param second is the CRC32C of the second piece
+	 * @param length is the number of bytes in the second piece
+	 * @return CRC32C of the first piece followed by the second
+	 */
+	static long combine(long first, long second, long length) {
+
+		if (length <= 0) {
+			return first;
+		}
+
+		// odd is the operator for one zero bit, even for two, then four
+		long[] odd = new long[Integer.SIZE];
+		long[] even = new long[Integer.SIZE];
+		odd[0] = CRC32C_POLYNOMIAL;
+		for (int n = 1; n < Integer.SIZE; n++) {
+			odd[n] = 1L << (n - 1);
+		}
+		square(even, odd);
+		square(odd, even);
+
+		// each pass squares to the operator for the next power of two
+		// zero bytes, applying it if that bit of length is set
+		do {
+			square(even, odd);
+			if ((length & 1) != 0) {
+				first = times(even, first);
+			}
+			length >>= 1;
+			if (length == 0) break;
+
+			square(odd, even);
+			if ((length & 1) != 0) {
+				first = times(odd, first);
+			}
+			length >>= 1;
+		} while (length != 0);
+
+		return first ^ second;
+	}
+
+	/**
+	 * @return matrix times vector over GF(2), a column per bit of vector
+	 */
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for (int n = 0; vector != 0; n++, vector >>>= 1) {
+			if ((vector & 1) != 0) {
+				sum ^= matrix[n];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Store the square of matrix in square
+	 */
+	private static void square(long[] square, long[] matrix) {
+		for (int n = 0; n < Integer.SIZE; n++) {
+			square[n] = times(matrix, matrix[n]);
+		}
+	}
+}
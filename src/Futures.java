@@ -0,0 +1,73 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Waiting on tasks submitted to a pool, with what a task threw rethrown
+ * as itself rather than wrapped in an ExecutionException, so callers see
+ * the same exceptions they would had they done the work on their own
+ * thread. An interrupt while waiting sets the thread's interrupt flag
+ * again and is thrown wrapped in a RuntimeException.
+ */
+
+final class Futures {
+
+	private Futures() {
+	}
+
+	/**
+	 * Run tasks on pool and wait for all of them to finish
+	 * @param pool runs the tasks
+	 * @param tasks are the tasks to run
+	 * @return the finished tasks, in the order of tasks, for get or await
+	 */
+	static <T> List<Future<T>> invokeAll(ExecutorService pool, Collection<? extends Callable<T>> tasks) {
+		try {
+			return pool.invokeAll(tasks);
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		}
+	}
+
+	/**
+	 * Wait for a task that may throw IOException
+	 * @param future is the submitted task
+	 * @return the task's result
+	 * @throws IOException if the task threw one
+	 */
+	static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(ie);
+		}
+		catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException) {
+				throw (IOException) ee.getCause();
+			}
+			if (ee.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ee.getCause();
+			}
+			throw new RuntimeException(ee.getCause());
+		}
+	}
+
+	/**
+	 * Wait for a task, as get does, with an IOException the task threw
+	 * wrapped in a RuntimeException
+	 * @param future is the submitted task
+	 * @return the task's result
+	 */
+	static <T> T await(Future<T> future) {
+		try {
+			return get(future);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.*;
+
+/**
+ * Adaptive Huffman coder using the FGK algorithm. Encoder and decoder
+ * start from the same tree holding only the NYT (not yet transmitted)
+ * node and update it identically after every symbol, so no counts or
+ * header are sent and each symbol is coded as soon as it is read.
+ * <P>
+ * A symbol seen before is sent as its path in the current tree. A new
+ * symbol is sent as the path to NYT followed by BITS_PER_WORD + 1 bits
+ * of the value, and NYT then splits into a new NYT and a leaf for it.
+ * <P>
+ * Nodes live in parallel arrays indexed by node number: weights never
+ * decrease with node number (the sibling property), the root is the
+ * highest number and NYT the lowest. Updating a symbol walks from its
+ * leaf to the root, first swapping each node with the highest-numbered
+ * node of equal weight so the property holds after the increment.
+ */
+
+public class HuffAdaptive {
+
+	// every value plus NYT as leaves, so one more leaf than ALPH_SIZE + 1
+	private static final int MAX_NODES = 2 * (HuffProcessor.ALPH_SIZE + 2) - 1;
+	private static final int INTERNAL = -1;
+	private static final int NYT = -2;
+
+	private final long[] myWeights = new long[MAX_NODES];
+	private final int[] myParents = new int[MAX_NODES];
+	private final int[] myLefts = new int[MAX_NODES];
+	private final int[] myRights = new int[MAX_NODES];
+	private final int[] myValues = new int[MAX_NODES];
+	private final int[] myLeaves = new int[HuffProcessor.ALPH_SIZE + 1];
+	private final int[] myPath = new int[MAX_NODES];
+	private int myNYT;
+
+	public HuffAdaptive() {
+		Arrays.fill(myLeaves, -1);
+		myNYT = MAX_NODES - 1;
+		myParents[myNYT] = -1;
+		myValues[myNYT] = NYT;
+	}
+
+	/**
+	 * Write the code for value in the current tree, then update the tree
+	 * @param value is on [0, PSEUDO_EOF]
+	 * @param out
+	 */
+	public void encode(int value, BitOutputStream out) {
+
+		int node = myLeaves[value];
+		if (node == -1) {
+			writePath(myNYT, out);
+			out.writeBits(HuffProcessor.BITS_PER_WORD + 1, value);
+		}
+		else {
+			writePath(node, out);
+		}
+		update(value);
+	}
+
+	/**
+	 * Read one code, then update the tree as encode did
+	 * @param in
+	 * @return the decoded value
+	 */
+	public int decode(BitInputStream in) {
+
+		int node = MAX_NODES - 1;
+		while (myValues[node] == INTERNAL) {
+			int bit = in.readBits(1);
+			if (bit == -1) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			node = bit == 0 ? myLefts[node] : myRights[node];
+		}
+
+		int value = myValues[node];
+		if (value == NYT) {
+			value = in.readBits(HuffProcessor.BITS_PER_WORD + 1);
+			if (value < 0 || value > HuffProcessor.PSEUDO_EOF || myLeaves[value] != -1) {
+				throw new HuffException("bad input, new value " + value);
+			}
+		}
+		update(value);
+		return value;
+	}
+
+	/**
+	 * Writes the path from the root to node, 0 for left and 1 for right
+	 */
+	private void writePath(int node, BitOutputStream out) {
+
+		int depth = 0;
+		while (myParents[node] != -1) {
+			int parent = myParents[node];
+			myPath[depth++] = myRights[parent] == node ? 1 : 0;
+			node = parent;
+		}
+
+		while (depth > 0) {
+			int chunk = Math.min(depth, HuffProcessor.BITS_PER_INT);
+			int bits = 0;
+			for (int k = 0; k < chunk; k++) {
+				bits = (bits << 1) | myPath[--depth];
+			}
+			out.writeBits(chunk, bits);
+		}
+	}
+
+	/**
+	 * Add one to the weight of value's leaf and every node above it,
+	 * adding a leaf for value first if it is new
+	 */
+	private void update(int value) {
+
+		int node = myLeaves[value];
+		if (node == -1) {
+			node = split(value);
+		}
+
+		while (node != -1) {
+			int leader = node;
+			while (leader + 1 < MAX_NODES && myWeights[leader + 1] == myWeights[node]) {
+				leader++;
+			}
+			if (leader != node && leader != myParents[node]) {
+				swap(node, leader);
+				node = leader;
+			}
+			myWeights[node]++;
+			node = myParents[node];
+		}
+	}
+
+	/**
+	 * NYT becomes an internal node whose right child is a new leaf for
+	 * value and whose left child is the new NYT
+	 * @return the new leaf
+	 */
+	private int split(int value) {
+
+		int parent = myNYT;
+		int leaf = parent - 1;
+		myNYT = parent - 2;
+
+		myValues[parent] = INTERNAL;
+		myLefts[parent] = myNYT;
+		myRights[parent] = leaf;
+
+		myValues[leaf] = value;
+		myParents[leaf] = parent;
+		myLeaves[value] = leaf;
+
+		myValues[myNYT] = NYT;
+		myParents[myNYT] = parent;
+		return leaf;
+	}
+
+	/**
+	 * Exchange the subtrees numbered a and b; node numbers, and so each
+	 * number's parent, stay where they are
+	 */
+	private void swap(int a, int b) {
+
+		int value = myValues[a];
+		myValues[a] = myValues[b];
+		myValues[b] = value;
+		int left = myLefts[a];
+		myLefts[a] = myLefts[b];
+		myLefts[b] = left;
+		int right = myRights[a];
+		myRights[a] = myRights[b];
+		myRights[b] = right;
+		long weight = myWeights[a];
+		myWeights[a] = myWeights[b];
+		myWeights[b] = weight;
+
+		adopt(a);
+		adopt(b);
+	}
+
+	/**
+	 * Point whatever refers to the content now numbered node back at node
+	 */
+	private void adopt(int node) {
+		if (myValues[node] == INTERNAL) {
+			myParents[myLefts[node]] = node;
+			myParents[myRights[node]] = node;
+		}
+		else if (myValues[node] == NYT) {
+			myNYT = node;
+		}
+		else {
+			myLeaves[myValues[node]] = node;
+		}
+	}
+}
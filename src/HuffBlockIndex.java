@@ -0,0 +1,217 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Index of the blocks of a HUFF_PARALLEL file. For each block it records
+ * the byte offset of the encoded block in the file, its encoded bit count
+ * and its uncompressed length, so a reader can locate any block, and the
+ * place its bytes go in the output, without decoding the blocks before it.
+ * <P>
+ * The index is written as a trailer after the final block: one entry of
+ * 64 + 32 + 32 bits per block, then 64 bits of the byte offset where the
+ * entries start, BITS_PER_INT bits of block count and HUFF_INDEX. Readers
+ * that decode serially stop at the final block and never see it.
+ */
+
+public class HuffBlockIndex {
+
+	public static final int HUFF_INDEX = HuffProcessor.HUFF_NUMBER | 0x10;
+
+	private static final int ENTRY_BYTES = 16;
+	private static final int FOOTER_BYTES = 16;
+	private static final long MAX_HEADER_BITS =
+			(HuffProcessor.ALPH_SIZE + 1) * (HuffProcessor.BITS_PER_WORD + 2L) + HuffProcessor.ALPH_SIZE;
+
+	private long[] myOffsets, myStarts;
+	private int[] myBits, myLengths;
+	private int mySize;
+
+	public HuffBlockIndex() {
+		myOffsets = new long[16];
+		myStarts = new long[17];
+		myBits = new int[16];
+		myLengths = new int[16];
+	}
+
+	/**
+	 * Record the next block
+	 * @param offset is the byte offset of the encoded block in the file
+	 * @param bits is the encoded bit count of the block
+	 * @param length is the uncompressed length of the block
+	 */
+	public void add(long offset, int bits, int length) {
+		if (mySize == myOffsets.length) {
+			int capacity = 2 * mySize;
+			myOffsets = Arrays.copyOf(myOffsets, capacity);
+			myStarts = Arrays.copyOf(myStarts, capacity + 1);
+			myBits = Arrays.copyOf(myBits, capacity);
+			myLengths = Arrays.copyOf(myLengths, capacity);
+		}
+		myOffsets[mySize] = offset;
+		myBits[mySize] = bits;
+		myLengths[mySize] = length;
+		myStarts[mySize + 1] = myStarts[mySize] + length;
+		mySize++;
+	}
+
+	/**
+	 * @return number of blocks
+	 */
+	public int size() {
+		return mySize;
+	}
+
+	/**
+	 * @return byte offset in the file of encoded block k
+	 */
+	public long offset(int k) {
+		return myOffsets[k];
+	}
+
+	/**
+	 * @return encoded bit count of block k
+	 */
+	public int bits(int k) {
+		return myBits[k];
+	}
+
+	/**
+	 * @return uncompressed length of block k
+	 */
+	public int length(int k) {
+		return myLengths[k];
+	}
+
+	/**
+	 * @return offset in the uncompressed output of the first byte of block k
+	 */
+	public long start(int k) {
+		return myStarts[k];
+	}
+
+	/**
+	 * @return total uncompressed length of all blocks
+	 */
+	public long totalLength() {
+		return myStarts[mySize];
+	}
+
+	/**
+	 * Find the block holding a byte of the uncompressed output
+	 * @param position is an offset in the uncompressed output, on
+	 * [0, totalLength())
+	 * @return number of the block whose bytes include position
+	 */
+	public int blockAt(long position) {
+		int low = 0, high = mySize - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (myStarts[mid] <= position) low = mid;
+			else high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Write entries and footer
+	 * @param out is positioned just after the final block
+	 * @param indexOffset is the byte offset in the file of out's position
+	 */
+	public void write(BitOutputStream out, long indexOffset) {
+		for (int k = 0; k < mySize; k++) {
+			writeLong(out, myOffsets[k]);
+			out.writeBits(HuffProcessor.BITS_PER_INT, myBits[k]);
+			out.writeBits(HuffProcessor.BITS_PER_INT, myLengths[k]);
+		}
+		writeLong(out, indexOffset);
+		out.writeBits(HuffProcessor.BITS_PER_INT, mySize);
+		out.writeBits(HuffProcessor.BITS_PER_INT, HUFF_INDEX);
+	}
+
+	private static void writeLong(BitOutputStream out, long value) {
+		out.writeBits(HuffProcessor.BITS_PER_INT, (int) (value >>> HuffProcessor.BITS_PER_INT));
+		out.writeBits(HuffProcessor.BITS_PER_INT, (int) value);
+	}
+
+	/**
+	 * Read the index trailer of a HUFF_PARALLEL file
+	 * @param channel is the whole compressed file
+	 * @return the index, or null if the file has no index trailer
+	 * @throws HuffException if the trailer is present but inconsistent,
+	 * e.g., an entry's length is over MAX_BLOCK_SIZE, its bits are more
+	 * than a block of that length can take, or it ends past the index
+	 */
+	public static HuffBlockIndex read(FileChannel channel) throws IOException {
+		long size = channel.size();
+		if (size < 2 * Integer.BYTES + FOOTER_BYTES) {
+			return null;
+		}
+
+		ByteBuffer head = ByteBuffer.allocate(Integer.BYTES);
+		readFully(channel, head, 0);
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+		readFully(channel, footer, size - FOOTER_BYTES);
+		long indexOffset = footer.getLong(0);
+		int count = footer.getInt(8);
+		if (head.getInt(0) != HuffProcessor.HUFF_PARALLEL || footer.getInt(12) != HUFF_INDEX) {
+			return null;
+		}
+		if (count < 0 || count > Integer.MAX_VALUE / ENTRY_BYTES || indexOffset < 0
+				|| indexOffset + (long) count * ENTRY_BYTES + FOOTER_BYTES != size) {
+			throw new HuffException("bad input, inconsistent block index");
+		}
+
+		ByteBuffer entries = ByteBuffer.allocate(count * ENTRY_BYTES);
+		readFully(channel, entries, indexOffset);
+		entries.flip();
+		HuffBlockIndex index = new HuffBlockIndex();
+		for (int k = 0; k < count; k++) {
+			long offset = entries.getLong();
+			int bits = entries.getInt();
+			int length = entries.getInt();
+			if (offset < 0 || length < 1 || length > HuffProcessor.MAX_BLOCK_SIZE
+					|| bits < 0 || bits > maxBlockBits(length)
+					|| offset + (bits + 7L) / 8 > indexOffset) {
+				throw new HuffException("bad input, block index entry " + k);
+			}
+			index.add(offset, bits, length);
+		}
+		return index;
+	}
+
+	/**
+	 * @param length is the uncompressed length of a block
+	 * @return the most bits a block of length bytes can encode to: a tree
+	 * header with every value and PSEUDO_EOF, then length codes and
+	 * PSEUDO_EOF's, each of at most MAX_CODE_LENGTH bits
+	 */
+	static long maxBlockBits(int length) {
+		return MAX_HEADER_BITS + (length + 1L) * HuffCodebook.MAX_CODE_LENGTH;
+	}
+
+	/**
+	 * Fill buffer from channel starting at position, without moving the
+	 * channel's own position, so many threads can share one channel
+	 */
+	public static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if (count == -1) {
+				throw new HuffException("bad input, unexpected end of file");
+			}
+			position += count;
+		}
+	}
+
+	/**
+	 * Write all of buffer to channel starting at position, without moving
+	 * the channel's own position
+	 */
+	public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+}
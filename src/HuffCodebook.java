@@ -0,0 +1,262 @@
+import java.util.*;
+
+/**
+ * Code and code-length tables for one Huffman code, indexed by value.
+ * Built once per code, from code lengths alone, so the encoder never
+ * walks a tree, builds strings, or parses codes while writing.
+ * <P>
+ * Code bits are right-aligned in myCodes[v] and myLengths[v] of them are
+ * significant; values not in the code have length 0.
+ * A plain old Java object, no getters.
+ */
+
+public class HuffCodebook {
+
+	public static final int MAX_CODE_LENGTH = 32;
+	private static final int VALUE_BITS = 9;
+	private static final long VALUE_MASK = (1 << VALUE_BITS) - 1;
+
+	public final int[] myCodes;
+	public final byte[] myLengths;
+
+	private HuffCodebook(int[] codes, byte[] lengths) {
+		myCodes = codes;
+		myLengths = lengths;
+	}
+
+	/**
+	 * Build a codebook with no codes, whose arrays are filled in place,
+	 * e.g., by HuffCodec reusing one codebook for every message
+	 */
+	HuffCodebook() {
+		this(new int[HuffProcessor.ALPH_SIZE + 1], new byte[HuffProcessor.ALPH_SIZE + 1]);
+	}
+
+	/**
+	 * Build the canonical code for a set of code lengths: codes of each
+	 * length are consecutive, shorter codes come first, and within a
+	 * length codes are in value order. Only lengths need to be stored
+	 * for the codes to be rebuilt this way on both sides.
+	 * @param lengths is the code length of each value, 0 if absent
+	 * @return codebook with canonical codes for lengths
+	 * @throws HuffException if lengths are out of range or do not form
+	 * a complete prefix code
+	 */
+	public static HuffCodebook canonical(byte[] lengths) {
+
+		int[] codes = new int[lengths.length];
+		canonicalCodes(lengths, codes);
+		return new HuffCodebook(codes, lengths.clone());
+	}
+
+	/**
+	 * Fill in the canonical codes for a set of code lengths, as canonical
+	 * does, without allocating a codebook
+	 * @param lengths is the code length of each value, 0 if absent
+	 * @param codes receives the code of each value, 0 if absent
+	 * @throws HuffException as for canonical
+	 */
+	static void canonicalCodes(byte[] lengths, int[] codes) {
+
+		int[] lengthCounts = new int[MAX_CODE_LENGTH + 1];
+		long kraft = 0;
+		for (byte length : lengths) {
+			if (length < 0 || length > MAX_CODE_LENGTH) {
+				throw new HuffException("bad code length " + length);
+			}
+			if (length > 0) {
+				lengthCounts[length]++;
+				kraft += 1L << (MAX_CODE_LENGTH - length);
+			}
+		}
+		if (kraft != 0 && kraft != 1L << MAX_CODE_LENGTH) {
+			throw new HuffException("code lengths do not form a complete prefix code");
+		}
+
+		long[] nextCode = new long[MAX_CODE_LENGTH + 1];
+		long code = 0;
+		for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+			code = (code + lengthCounts[length - 1]) << 1;
+			nextCode[length] = code;
+		}
+
+		for (int value = 0; value < lengths.length; value++) {
+			codes[value] = lengths[value] > 0 ? (int) nextCode[lengths[value]]++ : 0;
+		}
+	}
+
+	/**
+	 * Compute optimal (Huffman) code lengths with the in-place algorithm
+	 * of Moffat and Katajainen: counts sorted in ascending order are
+	 * merged in one linear pass that reuses the array for the weights of
+	 * internal nodes and then for parent pointers, which turn into depths
+	 * and finally into leaf depths. No tree or queue is built, only the
+	 * two arrays worked in and the lengths returned are allocated.
+	 * @param counts is the count of each value, 0 if absent
+	 * @return code length of each value, 0 for values with count 0 and
+	 * for a value that is the only one present
+	 */
+	public static byte[] optimalLengths(long[] counts) {
+
+		byte[] lengths = new byte[counts.length];
+		optimalLengths(counts, lengths, new long[counts.length], new long[counts.length]);
+		return lengths;
+	}
+
+	/**
+	 * Compute optimal code lengths as optimalLengths(counts) does, into
+	 * arrays the caller keeps, so nothing is allocated
+	 * @param counts is the count of each value, 0 if absent
+	 * @param lengths receives the code length of each value
+	 * @param order is scratch space, at least counts.length long
+	 * @param a is scratch space, at least counts.length long
+	 */
+	static void optimalLengths(long[] counts, byte[] lengths, long[] order, long[] a) {
+
+		Arrays.fill(lengths, 0, counts.length, (byte) 0);
+		int n = sortedByCount(counts, order);
+		if (n < 2) {
+			return;   // a single value has an empty code
+		}
+
+		for (int k = 0; k < n; k++) a[k] = order[k] >>> VALUE_BITS;
+
+		// merge: a[next] becomes an internal node's weight, and a node
+		// once used as a child holds the index of its parent
+		a[0] += a[1];
+		int root = 0, leaf = 2;
+		for (int next = 1; next < n - 1; next++) {
+			if (leaf >= n || a[root] < a[leaf]) {
+				a[next] = a[root];
+				a[root++] = next;
+			}
+			else {
+				a[next] = a[leaf++];
+			}
+			if (leaf >= n || (root < next && a[root] < a[leaf])) {
+				a[next] += a[root];
+				a[root++] = next;
+			}
+			else {
+				a[next] += a[leaf++];
+			}
+		}
+
+		// parent indices to internal node depths, root at n - 2
+		a[n - 2] = 0;
+		for (int next = n - 3; next >= 0; next--) {
+			a[next] = a[(int) a[next]] + 1;
+		}
+
+		// internal node depths to leaf depths, deepest leaves first
+		int available = 1, used = 0, depth = 0;
+		root = n - 2;
+		int next = n - 1;
+		while (available > 0) {
+			while (root >= 0 && a[root] == depth) {
+				used++;
+				root--;
+			}
+			while (available > used) {
+				a[next--] = depth;
+				available--;
+			}
+			available = 2 * used;
+			depth++;
+			used = 0;
+		}
+
+		for (int k = 0; k < n; k++) {
+			lengths[(int) (order[k] & VALUE_MASK)] = (byte) a[k];   // long counts keep depth under 92
+		}
+	}
+
+	/**
+	 * Put each value with a non-zero count into order, packed as
+	 * count << VALUE_BITS | value, in ascending order of count and then
+	 * value, so sorting needs no boxed comparator
+	 * @return the number of values put into order
+	 */
+	private static int sortedByCount(long[] counts, long[] order) {
+		int k = 0;
+		for (int value = 0; value < counts.length; value++) {
+			if (counts[value] > 0) {
+				if (counts[value] > Long.MAX_VALUE >>> VALUE_BITS) {
+					throw new HuffException("count " + counts[value] + " too large");
+				}
+				order[k++] = counts[value] << VALUE_BITS | value;
+			}
+		}
+		Arrays.sort(order, 0, k);
+		return k;
+	}
+
+	/**
+	 * Compute code lengths no longer than maxLength with the least total
+	 * encoded size for those counts, using the package-merge algorithm.
+	 * Leaves are the values with non-zero counts in ascending order of
+	 * count; each of maxLength levels merges the leaves with packages
+	 * formed by pairing adjacent items of the level below, and the first
+	 * 2n - 2 items of the top level determine the lengths. A value's length
+	 * is the number of levels at which it is among the selected leaves.
+	 * @param counts is the count of each value, 0 if absent
+	 * @param maxLength is the longest code allowed
+	 * @return code length of each value, 0 for values with count 0
+	 * @throws HuffException if more values are present than maxLength bits
+	 * can code
+	 */
+	public static byte[] limitedLengths(long[] counts, int maxLength) {
+
+		byte[] lengths = new byte[counts.length];
+		long[] order = new long[counts.length];
+		int n = sortedByCount(counts, order);
+		if (n < 2) {
+			return lengths;   // a single value has an empty code
+		}
+		if (maxLength < 1 || maxLength > MAX_CODE_LENGTH || n > 1L << maxLength) {
+			throw new HuffException(n + " values cannot be coded in " + maxLength + " bits");
+		}
+
+		long[] leafWeights = new long[n];
+		for (int k = 0; k < n; k++) leafWeights[k] = order[k] >>> VALUE_BITS;
+
+		// isPackage[level][i] says whether item i of that level's merged list
+		// is a package; level maxLength - 1 is the leaves alone
+		boolean[][] isPackage = new boolean[maxLength][];
+		long[] items = leafWeights.clone();
+		isPackage[maxLength - 1] = new boolean[n];
+		for (int level = maxLength - 2; level >= 0; level--) {
+			int packages = items.length / 2;
+			long[] merged = new long[n + packages];
+			boolean[] flags = new boolean[n + packages];
+			int leaf = 0, pack = 0;
+			for (int i = 0; i < merged.length; i++) {
+				long packWeight = pack < packages ? items[2 * pack] + items[2 * pack + 1] : Long.MAX_VALUE;
+				if (leaf < n && leafWeights[leaf] <= packWeight) {
+					merged[i] = leafWeights[leaf++];
+				}
+				else {
+					merged[i] = packWeight;
+					flags[i] = true;
+					pack++;
+				}
+			}
+			items = merged;
+			isPackage[level] = flags;
+		}
+
+		int selected = 2 * n - 2;
+		for (int level = 0; level < maxLength && selected > 0; level++) {
+			int leavesSelected = 0, packagesSelected = 0;
+			for (int i = 0; i < selected; i++) {
+				if (isPackage[level][i]) packagesSelected++;
+				else leavesSelected++;
+			}
+			for (int i = 0; i < leavesSelected; i++) {
+				lengths[(int) (order[i] & VALUE_MASK)]++;
+			}
+			selected = 2 * packagesSelected;
+		}
+		return lengths;
+	}
+}
@@ -0,0 +1,226 @@
+import java.nio.*;
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Recently used codebooks and decoders, for compressing or decompressing
+ * many inputs whose byte distributions are nearly the same, e.g., a
+ * series of rotated logs, without building codes or decoder tables for
+ * each one.
+ * <P>
+ * Codebooks are found by a signature of the counts: for each value, 0 if
+ * it does not occur and otherwise the number of bits in total / count,
+ * about the length of its optimal code. Inputs with the same signature
+ * use the same values, so a cached codebook can code them; it is used
+ * only if the bits it would take are within the tolerance of an estimate
+ * of the optimal bits, the counts' entropy times the ratio of Huffman
+ * bits to entropy when the codebook was built, and is replaced otherwise.
+ * Decoders are found by the codes and lengths a header gives.
+ * <P>
+ * Each kind of entry is limited to the capacity given, evicting the
+ * least recently used. Safe to share between threads and processors;
+ * codes are built outside the lock, so two threads that miss at once may
+ * both build them. Which codebook an input gets depends on the inputs
+ * looked up before it, so callers that need the same output every run,
+ * e.g., compressParallel, look inputs up in a fixed order.
+ */
+
+public class HuffCodebookCache {
+
+	/**
+	 * A cached codebook. Plain old Java object.
+	 */
+	private static class Cached {
+		final HuffCodebook myCodings;
+		final double myRatio;
+
+		Cached(HuffCodebook codings, double ratio) {
+			myCodings = codings;
+			myRatio = ratio;
+		}
+	}
+
+	private final int myCapacity;
+	private final double myTolerance;
+	private final LinkedHashMap<ByteBuffer, Cached> myCodebooks;
+	private final LinkedHashMap<ByteBuffer, HuffDecoder> myDecoders;
+	private long myHits, myMisses, myDecoderHits, myDecoderMisses;
+
+	/**
+	 * @param capacity is the most codebooks, and the most decoders, kept
+	 * @param tolerance is how much worse than the estimated optimum a
+	 * cached codebook may be and still be used, e.g., 0.01 for 1%
+	 */
+	public HuffCodebookCache(int capacity, double tolerance) {
+		if (capacity < 1 || tolerance < 0) {
+			throw new HuffException("cache needs capacity at least 1 and tolerance at least 0, was "
+					+ capacity + " and " + tolerance);
+		}
+		myCapacity = capacity;
+		myTolerance = tolerance;
+		myCodebooks = new LinkedHashMap<ByteBuffer, Cached>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Cached> eldest) {
+				return size() > myCapacity;
+			}
+		};
+		myDecoders = new LinkedHashMap<ByteBuffer, HuffDecoder>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, HuffDecoder> eldest) {
+				return size() > myCapacity;
+			}
+		};
+	}
+
+	/**
+	 * Find a codebook for counts, or build and cache one
+	 * @param counts is the count of each value, including PSEUDO_EOF
+	 * @param maxCodeLength is the longest code allowed
+	 * @param builder makes the optimal codebook for counts on a miss
+	 * @return a codebook for counts, within tolerance of the best one
+	 */
+	public HuffCodebook codings(long[] counts, int maxCodeLength, Function<long[], HuffCodebook> builder) {
+
+		ByteBuffer key = signature(counts);
+		double entropy = entropyBits(counts);
+		Cached cached;
+		synchronized (this) {
+			cached = myCodebooks.get(key);
+		}
+		if (cached != null && maxLength(cached.myCodings) <= maxCodeLength
+				&& bits(counts, cached.myCodings) <= (1 + myTolerance) * cached.myRatio * entropy) {
+			synchronized (this) {
+				myHits++;
+			}
+			return cached.myCodings;
+		}
+
+		HuffCodebook codings = builder.apply(counts);
+		double ratio = entropy == 0 ? 1 : bits(counts, codings) / entropy;
+		synchronized (this) {
+			myMisses++;
+			myCodebooks.put(key, new Cached(codings, ratio));
+		}
+		return codings;
+	}
+
+	/**
+	 * Find the decoder for a header's codes, or build and cache one
+	 * @param codes holds each value's code, right-aligned
+	 * @param lengths holds each value's code length, 0 if absent
+	 * @return a decoder for the codes, which must not be rebuilt
+	 */
+	public HuffDecoder decoder(int[] codes, byte[] lengths) {
+
+		ByteBuffer key = ByteBuffer.allocate(lengths.length * (Integer.BYTES + 1));
+		key.put(lengths);
+		for (int value = 0; value < lengths.length; value++) {
+			key.putInt(lengths[value] == 0 ? 0 : codes[value]);
+		}
+		key.clear();
+		HuffDecoder decoder;
+		synchronized (this) {
+			decoder = myDecoders.get(key);
+			if (decoder != null) {
+				myDecoderHits++;
+				return decoder;
+			}
+		}
+
+		decoder = new HuffDecoder();
+		decoder.rebuild(codes, lengths);
+		synchronized (this) {
+			myDecoderMisses++;
+			myDecoders.put(key, decoder);
+		}
+		return decoder;
+	}
+
+	/**
+	 * @return number of times codings returned a cached codebook
+	 */
+	public synchronized long hits() {
+		return myHits;
+	}
+
+	/**
+	 * @return number of times codings built a codebook
+	 */
+	public synchronized long misses() {
+		return myMisses;
+	}
+
+	/**
+	 * @return number of times decoder returned a cached decoder
+	 */
+	public synchronized long decoderHits() {
+		return myDecoderHits;
+	}
+
+	/**
+	 * @return number of times decoder built a decoder
+	 */
+	public synchronized long decoderMisses() {
+		return myDecoderMisses;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("codebooks %d hits, %d misses; decoders %d hits, %d misses",
+				myHits, myMisses, myDecoderHits, myDecoderMisses);
+	}
+
+	/**
+	 * @return for each value, 0 if its count is 0 and otherwise the number
+	 * of bits in total / count
+	 */
+	private static ByteBuffer signature(long[] counts) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		byte[] signature = new byte[counts.length];
+		for (int value = 0; value < counts.length; value++) {
+			if (counts[value] > 0) {
+				signature[value] = (byte) (Long.SIZE - Long.numberOfLeadingZeros(total / counts[value]));
+			}
+		}
+		return ByteBuffer.wrap(signature);
+	}
+
+	/**
+	 * @return bits the counts take at their entropy
+	 */
+	private static double entropyBits(long[] counts) {
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		double bits = 0;
+		for (long count : counts) {
+			if (count > 0) {
+				bits -= count * Math.log((double) count / total);
+			}
+		}
+		return bits / Math.log(2);
+	}
+
+	/**
+	 * @return bits the counts take coded with codings
+	 */
+	private static double bits(long[] counts, HuffCodebook codings) {
+		double bits = 0;
+		for (int value = 0; value < counts.length; value++) {
+			bits += (double) counts[value] * codings.myLengths[value];
+		}
+		return bits;
+	}
+
+	private static int maxLength(HuffCodebook codings) {
+		int max = 0;
+		for (byte length : codings.myLengths) {
+			max = Math.max(max, length);
+		}
+		return max;
+	}
+}
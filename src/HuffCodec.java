@@ -0,0 +1,243 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Compresses and decompresses whole messages held in memory, as byte
+ * arrays or ByteBuffers, e.g., for an RPC layer coding many small
+ * payloads where setting up streams would cost more than the coding.
+ * <P>
+ * A codec keeps its working state from one call to the next: counts,
+ * codebook, tree reader and decoder, and bit streams that read and write
+ * the caller's buffers in place. The streams are pointed at each call's
+ * buffers with reuse, and the last arrays given are wrapped only once,
+ * so a call allocates no buffers, streams or stats, only the small work
+ * arrays of the tree header.
+ * <P>
+ * Output is in the HUFF_BLOCKS format of compressBlocks, in blocks of
+ * DEFAULT_BLOCK_SIZE, so HuffProcessor.decompress and HuffInputStream
+ * read it too; a message that coding would not make smaller is stored,
+ * so output is never more than maxCompressedLength. decompress reads
+ * only HUFF_BLOCKS, with the block reader HuffProcessor.decompress uses.
+ * A codec is not thread-safe; use one per thread.
+ */
+
+public class HuffCodec {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final long[] myCounts = new long[HuffProcessor.ALPH_SIZE + 1];
+	private final long[] myOrder = new long[HuffProcessor.ALPH_SIZE + 1];
+	private final long[] myWeights = new long[HuffProcessor.ALPH_SIZE + 1];
+	private final HuffCodebook myCodings = new HuffCodebook();
+	private final HuffTreeReader myReader = new HuffTreeReader();
+	private final BitInputStream myIn = new BitInputStream(ByteBuffer.allocate(0));
+	private final BitOutputStream myOut = new BitOutputStream(ByteBuffer.allocate(0));
+	private final byte[] myChunk = new byte[CHUNK_SIZE];
+	private final HuffStats myStats = new HuffStats();
+	private ByteBuffer mySource, myTarget;
+	private byte[] myBlock;
+
+	/**
+	 * @param length is the number of bytes to compress
+	 * @return the most bytes compress can write for length bytes: the
+	 * format number, final block length, and per block a length and a
+	 * byte of padding
+	 */
+	public static int maxCompressedLength(int length) {
+		int blocks = (int) ((length + (long) HuffProcessor.DEFAULT_BLOCK_SIZE - 1) / HuffProcessor.DEFAULT_BLOCK_SIZE);
+		return 2 * Integer.BYTES + blocks * (Integer.BYTES + 1) + length;
+	}
+
+	/**
+	 * Compress len bytes of src into the start of dst
+	 * @see #compress(byte[], int, int, byte[], int)
+	 */
+	public int compress(byte[] src, int off, int len, byte[] dst) {
+		return compress(src, off, len, dst, 0);
+	}
+
+	/**
+	 * Compress len bytes of src into dst
+	 * @param src holds the bytes to compress
+	 * @param off is the index in src of the first byte
+	 * @param len is the number of bytes to compress
+	 * @param dst receives the compressed bytes
+	 * @param dstOff is the index in dst of the first compressed byte
+	 * @return number of bytes written to dst
+	 * @throws HuffException if dst has too little room, which at least
+	 * maxCompressedLength(len) bytes always is enough
+	 */
+	public int compress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		mySource = wrap(src, off, len, mySource);
+		myTarget = wrap(dst, dstOff, dst.length - dstOff, myTarget);
+		return compress(mySource, myTarget);
+	}
+
+	/**
+	 * Compress the remaining bytes of src into dst at its position
+	 * @param src holds the bytes to compress, from its position to its
+	 * limit; its position moves to its limit
+	 * @param dst receives the compressed bytes; its position moves past them
+	 * @return number of bytes written to dst
+	 * @throws HuffException if dst has too little room, which at least
+	 * maxCompressedLength(src.remaining()) bytes always is enough; if
+	 * anything is thrown the positions of src and dst are left as they were
+	 */
+	public int compress(ByteBuffer src, ByteBuffer dst) {
+
+		int srcStart = src.position(), dstStart = dst.position();
+		ByteBuffer target = bigEndian(dst);
+		myOut.reuse(target);
+		try {
+			myOut.writeBits(HuffProcessor.BITS_PER_INT, HuffProcessor.HUFF_BLOCKS);
+			while (src.hasRemaining()) {
+				int length = Math.min(src.remaining(), HuffProcessor.DEFAULT_BLOCK_SIZE);
+				if (src.hasArray()) {
+					writeBlock(src.array(), src.arrayOffset() + src.position(), length);
+					src.position(src.position() + length);
+				}
+				else {
+					if (myBlock == null || myBlock.length < length) {
+						myBlock = new byte[length];
+					}
+					src.get(myBlock, 0, length);
+					writeBlock(myBlock, 0, length);
+				}
+			}
+			myOut.writeBits(HuffProcessor.BITS_PER_INT, 0);
+			myOut.flush();
+		}
+		catch (BufferOverflowException full) {
+			src.position(srcStart);
+			dst.position(dstStart);
+			throw new HuffException("output buffer of " + (dst.limit() - dstStart)
+					+ " bytes is too small, allow maxCompressedLength");
+		}
+		catch (RuntimeException e) {
+			src.position(srcStart);
+			dst.position(dstStart);
+			throw e;
+		}
+		dst.position(target.position());
+		return dst.position() - dstStart;
+	}
+
+	/**
+	 * Decompress len bytes of src into dst
+	 * @param src holds the compressed bytes
+	 * @param off is the index in src of the first compressed byte
+	 * @param len is the number of compressed bytes
+	 * @param dst receives the decompressed bytes
+	 * @param dstOff is the index in dst of the first decompressed byte
+	 * @return number of bytes written to dst
+	 * @throws HuffException if src is not in the HUFF_BLOCKS format or is
+	 * corrupt, or dst has too little room
+	 */
+	public int decompress(byte[] src, int off, int len, byte[] dst, int dstOff) {
+		mySource = wrap(src, off, len, mySource);
+		myTarget = wrap(dst, dstOff, dst.length - dstOff, myTarget);
+		return decompress(mySource, myTarget);
+	}
+
+	/**
+	 * Decompress one message from src into dst at its position
+	 * @param src holds the compressed bytes from its position on; its
+	 * position moves just past the message
+	 * @param dst receives the decompressed bytes; its position moves past them
+	 * @return number of bytes written to dst
+	 * @throws HuffException if src is not in the HUFF_BLOCKS format or is
+	 * corrupt, or dst has too little room; if anything is thrown the
+	 * positions of src and dst are left as they were
+	 */
+	public int decompress(ByteBuffer src, ByteBuffer dst) {
+
+		int srcStart = src.position(), dstStart = dst.position();
+		ByteBuffer source = bigEndian(src), target = bigEndian(dst);
+		myIn.reuse(source);
+		myOut.reuse(target);
+		try {
+			if (myIn.readBits(HuffProcessor.BITS_PER_INT) != HuffProcessor.HUFF_BLOCKS) {
+				throw new HuffException("bad input, HuffCodec reads only HUFF_BLOCKS");
+			}
+			HuffProcessor.readCompressedBlocks(myIn, myOut, myReader, null, myChunk, myStats);
+			myOut.flush();
+		}
+		catch (BufferOverflowException full) {
+			src.position(srcStart);
+			dst.position(dstStart);
+			throw new HuffException("output buffer of " + (dst.limit() - dstStart) + " bytes is too small");
+		}
+		catch (RuntimeException e) {
+			src.position(srcStart);
+			dst.position(dstStart);
+			throw e;
+		}
+		myIn.alignToByte();
+		src.position(source.limit() - myIn.available());
+		dst.position(target.position());
+		return dst.position() - dstStart;
+	}
+
+	/**
+	 * Write one block as compressBlocks does, coded or stored, building
+	 * its codes in this codec's arrays
+	 * @param data holds the bytes to compress
+	 * @param offset is the index in data of the block
+	 * @param length is the number of bytes in the block
+	 */
+	private void writeBlock(byte[] data, int offset, int length) {
+
+		Arrays.fill(myCounts, 0);
+		for (int k = offset; k < offset + length; k++) {
+			myCounts[data[k] & 0xff]++;
+		}
+		myCounts[HuffProcessor.PSEUDO_EOF] = 1;
+
+		byte[] lengths = myCodings.myLengths;
+		HuffCodebook.optimalLengths(myCounts, lengths, myOrder, myWeights);
+		for (byte codeLength : lengths) {
+			if (codeLength > HuffCodebook.MAX_CODE_LENGTH) {
+				byte[] limited = HuffCodebook.limitedLengths(myCounts, HuffCodebook.MAX_CODE_LENGTH);
+				System.arraycopy(limited, 0, lengths, 0, lengths.length);
+				break;
+			}
+		}
+		HuffCodebook.canonicalCodes(lengths, myCodings.myCodes);
+
+		if (HuffProcessor.codedBits(myCounts, myCodings) < HuffProcessor.BITS_PER_WORD * (long) length) {
+			myOut.writeBits(HuffProcessor.BITS_PER_INT, length);
+			HuffProcessor.writeTreeHeader(myCodings, myOut);
+			HuffProcessor.writeCodes(myCodings, data, offset, length, myOut);
+			HuffProcessor.writeCode(myCodings, HuffProcessor.PSEUDO_EOF, myOut);
+		}
+		else {
+			HuffProcessor.startStoredBlock(length, myOut);
+			myOut.write(data, offset, length);
+		}
+	}
+
+	/**
+	 * @return buffer over array from offset for length bytes, reusing
+	 * cached if it already wraps array
+	 */
+	private static ByteBuffer wrap(byte[] array, int offset, int length, ByteBuffer cached) {
+		if (offset < 0 || length < 0 || length > array.length - offset) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (cached == null || !cached.hasArray() || cached.array() != array) {
+			cached = ByteBuffer.wrap(array);
+		}
+		cached.clear();
+		cached.position(offset);
+		cached.limit(offset + length);
+		return cached;
+	}
+
+	/**
+	 * @return buffer if it is big-endian, else a big-endian view of it
+	 * with the same position and limit
+	 */
+	private static ByteBuffer bigEndian(ByteBuffer buffer) {
+		return buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+	}
+}
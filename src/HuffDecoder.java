@@ -0,0 +1,223 @@
+import java.util.*;
+
+/**
+ * Table-driven Huffman decoder. Instead of walking a tree one bit at a
+ * time, the decoder peeks at the next myTableBits bits of the stream and
+ * resolves both the symbol and its code length with a single array lookup.
+ * <P>
+ * The decoder is built from code and code-length tables, so it serves
+ * codes read from a tree header and canonical codes rebuilt from code
+ * lengths alike, without materializing a tree of HuffNode objects.
+ * <P>
+ * Codes longer than the table width are rare; their table entry points at
+ * a node of a small flat trie holding the rest of those codes, and decoding
+ * finishes there one bit at a time.
+ * <P>
+ * Table entries are packed ints: a leaf entry holds
+ * (value << 8) | codeLength and is non-negative, a long-code entry holds
+ * the bitwise complement of a trie node and is negative. In the trie,
+ * myTrie[2*node + bit] is the child node for bit, or the complement of
+ * the value when the child is a leaf.
+ */
+
+public class HuffDecoder {
+
+	public static final int TABLE_BITS = 11;
+
+	private boolean myEmpty;
+	private int myTableBits;
+	private final int[] myTable;
+	private int[] myTrie;
+	private int myTrieSize;
+
+	/**
+	 * Build decoding table for the codes of a codebook
+	 * @param codings is a complete prefix code, e.g., from
+	 * HuffCodebook.canonical
+	 */
+	public HuffDecoder(HuffCodebook codings) {
+		this();
+		rebuild(codings.myCodes, codings.myLengths);
+	}
+
+	/**
+	 * Build a decoder with no codes, to be filled in by rebuild. Its
+	 * arrays are kept across rebuilds, so one decoder can serve many
+	 * headers without allocating.
+	 */
+	public HuffDecoder() {
+		myEmpty = true;
+		myTableBits = 1;
+		myTable = new int[1 << TABLE_BITS];
+		myTrie = new int[0];
+	}
+
+	/**
+	 * Replace this decoder's codes, reusing its table and trie
+	 * @param codes holds each value's code, right-aligned
+	 * @param lengths holds each value's code length, 0 if absent; codes
+	 * and lengths together must form a complete prefix code
+	 */
+	public void rebuild(int[] codes, byte[] lengths) {
+		int maxLength = 0;
+		for (byte length : lengths) {
+			maxLength = Math.max(maxLength, length);
+		}
+
+		Arrays.fill(myTable, 0, 1 << myTableBits, 0);
+		Arrays.fill(myTrie, 0, 2 * myTrieSize, 0);
+		myTrieSize = 0;
+		myEmpty = maxLength == 0;
+		myTableBits = Math.max(1, Math.min(TABLE_BITS, maxLength));
+
+		for (int value = 0; value < lengths.length; value++) {
+			int length = lengths[value];
+			if (length == 0) continue;
+
+			int code = codes[value];
+			if (length <= myTableBits) {
+				int shift = myTableBits - length;
+				Arrays.fill(myTable, code << shift, (code + 1) << shift, (value << 8) | length);
+			}
+			else {
+				addLongCode(value, code, length);
+			}
+		}
+	}
+
+	/**
+	 * Add a code longer than the table to the trie, creating the trie
+	 * node for its first myTableBits bits if this is the first such code
+	 * @param value is the value the code stands for
+	 * @param code is the code, right-aligned
+	 * @param length is the number of bits in code
+	 */
+	private void addLongCode(int value, int code, int length) {
+
+		int prefix = code >>> (length - myTableBits);
+		if (myTable[prefix] == 0) {
+			myTable[prefix] = ~newTrieNode();
+		}
+
+		int node = ~myTable[prefix];
+		for (int k = length - myTableBits - 1; k > 0; k--) {
+			int slot = 2 * node + ((code >>> k) & 1);
+			if (myTrie[slot] == 0) {
+				int child = newTrieNode();
+				myTrie[slot] = child;
+			}
+			node = myTrie[slot];
+		}
+		myTrie[2 * node + (code & 1)] = ~value;
+	}
+
+	/**
+	 * @return a new trie node with both children unset (0); a node made
+	 * for a table entry is never a child, and node 0 is always made for a
+	 * table entry, so 0 is free to mean unset
+	 */
+	private int newTrieNode() {
+		if (2 * myTrieSize == myTrie.length) {
+			myTrie = Arrays.copyOf(myTrie, Math.max(16, 2 * myTrie.length));
+		}
+		return myTrieSize++;
+	}
+
+	/**
+	 * @return true if the only code is PSEUDO_EOF's, which is empty, so
+	 * next must not be called
+	 */
+	public boolean isEmpty() {
+		return myEmpty;
+	}
+
+	/**
+	 * Decode symbols from in and write them to out until PSEUDO_EOF.
+	 * Output is identical to walking the tree one bit at a time.
+	 * @param in is positioned at the first bit after the header
+	 * @param out receives the decoded 8-bit values
+	 * @return number of values written to out
+	 */
+	public long decode(BitInputStream in, BitOutputStream out) {
+
+		if (myEmpty) {
+			return 0;   // only PSEUDO_EOF was encoded, with an empty code
+		}
+
+		long count = 0;
+		while (true) {
+			int value = next(in);
+			if (value == HuffProcessor.PSEUDO_EOF)
+				break;
+			out.writeBits(HuffProcessor.BITS_PER_WORD, value);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Decode symbols from in into an array until PSEUDO_EOF
+	 * @param in is positioned at the first bit after the header
+	 * @param out receives the decoded values as bytes
+	 * @param offset is the index in out of the first decoded value
+	 * @param length is the most values that may be decoded
+	 * @return number of values stored in out
+	 * @throws HuffException if more than length values precede PSEUDO_EOF
+	 */
+	public int decode(BitInputStream in, byte[] out, int offset, int length) {
+
+		if (myEmpty) {
+			return 0;
+		}
+
+		int count = 0;
+		while (true) {
+			int value = next(in);
+			if (value == HuffProcessor.PSEUDO_EOF)
+				break;
+			if (count == length) {
+				throw new HuffException("bad input, more than " + length + " values");
+			}
+			out[offset + count++] = (byte) value;
+		}
+		return count;
+	}
+
+	/**
+	 * Decode one symbol from in, e.g., when the table to use changes from
+	 * symbol to symbol. The code must not be empty.
+	 * @param in is positioned at the start of a code
+	 * @return the decoded value
+	 */
+	public int next(BitInputStream in) {
+
+		int bits = in.peekBits(myTableBits);
+		if (bits == -1) {
+			throw new HuffException("bad input, no PSEUDO_EOF");
+		}
+
+		int entry = myTable[bits];
+		if (entry >= 0) {
+			if (!in.skipBits(entry & 0xff)) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			return entry >>> 8;
+		}
+
+		if (!in.skipBits(myTableBits)) {
+			throw new HuffException("bad input, no PSEUDO_EOF");
+		}
+		int node = ~entry;
+		while (true) {
+			int bit = in.readBits(1);
+			if (bit == -1) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			int child = myTrie[2 * node + bit];
+			if (child < 0) {
+				return ~child;
+			}
+			node = child;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * A codebook shared by many compressed objects, so that each one can
+ * name it by id instead of carrying a header of its own. Small objects,
+ * whose tree header can be larger than the savings from coding them,
+ * then cost only the HUFF_DICTIONARY number and id over their codes, and
+ * neither side counts or builds a tree per object.
+ * <P>
+ * Dictionaries are made from sample data by HuffProcessor.trainDictionary
+ * and every value has a code, so objects unlike the samples still
+ * compress, if less well. A dictionary is stored as HUFF_DICTIONARY_FILE,
+ * BITS_PER_INT bits of id and the code lengths as a HUFF_CANONICAL
+ * header. Its decoder is built once, when the dictionary is made or
+ * read, and only read afterward, so threads can share it.
+ * <P>
+ * A plain old Java object like HuffCodebook, no getters.
+ */
+
+public class HuffDictionary {
+
+	public static final int HUFF_DICTIONARY_FILE = HuffProcessor.HUFF_NUMBER | 0x20;
+
+	public final int myId;
+	public final HuffCodebook myCodings;
+	public final HuffDecoder myDecoder;
+
+	/**
+	 * @param id identifies the dictionary in compressed objects, at least 0
+	 * @param codings is a canonical codebook with a code for every value,
+	 * including PSEUDO_EOF
+	 * @throws HuffException if id is negative or a value has no code
+	 */
+	public HuffDictionary(int id, HuffCodebook codings) {
+		if (id < 0) {
+			throw new HuffException("dictionary id must be at least 0, was " + id);
+		}
+		for (int value = 0; value < codings.myLengths.length; value++) {
+			if (codings.myLengths[value] == 0) {
+				throw new HuffException("dictionary " + id + " has no code for " + value);
+			}
+		}
+		myId = id;
+		myCodings = codings;
+		myDecoder = new HuffDecoder(codings);
+	}
+
+	/**
+	 * Write this dictionary; out is not closed
+	 * @param out
+	 */
+	public void write(BitOutputStream out) {
+		out.writeBits(HuffProcessor.BITS_PER_INT, HUFF_DICTIONARY_FILE);
+		out.writeBits(HuffProcessor.BITS_PER_INT, myId);
+		HuffProcessor.writeCanonicalHeader(myCodings, out);
+	}
+
+	/**
+	 * Read a dictionary written by write
+	 * @param in
+	 * @return the dictionary read, with its decoder built
+	 * @throws HuffException if in does not hold a dictionary
+	 */
+	public static HuffDictionary read(BitInputStream in) {
+		int magic = in.readBits(HuffProcessor.BITS_PER_INT);
+		if (magic != HUFF_DICTIONARY_FILE) {
+			throw new HuffException("not a dictionary, starts with " + magic);
+		}
+		int id = in.readBits(HuffProcessor.BITS_PER_INT);
+		if (id == -1) {
+			throw new HuffException("bad input, no dictionary id");
+		}
+		return new HuffDictionary(id, HuffProcessor.readCanonicalHeader(in));
+	}
+}
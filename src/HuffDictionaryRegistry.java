@@ -0,0 +1,76 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The dictionaries HuffProcessor.decompress can find by id. A dictionary
+ * file is read, and its decoder built, the first time it is loaded; later
+ * loads of the same file, and every object that names its id, share that
+ * one HuffDictionary. Safe to use from many threads at once.
+ * <P>
+ * Processors made without a registry use shared(), so dictionaries
+ * loaded there once are seen by every such processor in the JVM.
+ */
+
+public class HuffDictionaryRegistry {
+
+	private static final HuffDictionaryRegistry ourShared = new HuffDictionaryRegistry();
+
+	private final ConcurrentMap<Integer, HuffDictionary> myDictionaries = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, HuffDictionary> myFiles = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the registry of processors made without one
+	 */
+	public static HuffDictionaryRegistry shared() {
+		return ourShared;
+	}
+
+	/**
+	 * Make dictionary available by its id
+	 * @param dictionary
+	 * @throws HuffException if a dictionary with other codes already has
+	 * the id
+	 */
+	public void register(HuffDictionary dictionary) {
+		HuffDictionary previous = myDictionaries.putIfAbsent(dictionary.myId, dictionary);
+		if (previous != null && !Arrays.equals(previous.myCodings.myLengths, dictionary.myCodings.myLengths)) {
+			throw new HuffException("dictionary " + dictionary.myId + " is already registered with other codes");
+		}
+	}
+
+	/**
+	 * Read and register the dictionary in file, unless it was loaded before
+	 * @param file was written by HuffDictionary.write
+	 * @return the dictionary in file
+	 * @throws HuffException if file does not hold a dictionary or its id
+	 * is taken
+	 */
+	public HuffDictionary load(File file) {
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+		return myFiles.computeIfAbsent(key, path -> {
+			BitInputStream in = new BitInputStream(file);
+			try {
+				HuffDictionary dictionary = HuffDictionary.read(in);
+				register(dictionary);
+				return dictionary;
+			}
+			finally {
+				in.close();
+			}
+		});
+	}
+
+	/**
+	 * @return the dictionary registered with id, or null if there is none
+	 */
+	public HuffDictionary get(int id) {
+		return myDictionaries.get(id);
+	}
+}
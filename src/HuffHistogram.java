@@ -0,0 +1,127 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Byte frequency counter for the counting pass. Bytes are counted from
+ * whole arrays or buffers, round-robin into four count tables that are
+ * summed at the end of each call: a run of equal bytes then increments
+ * four different counters in turn instead of one counter whose previous
+ * increment has not yet been stored, so the loop is not held up waiting
+ * on itself.
+ * <P>
+ * Large files can be counted in parallel with count(FileChannel, pool),
+ * each task mapping and counting its own segment into its own tables
+ * before the results are merged.
+ */
+
+public class HuffHistogram {
+
+	public static final int PARALLEL_THRESHOLD = 1 << 24;
+	private static final int MIN_SEGMENT = 1 << 23;
+	private static final int MAX_SEGMENT = 1 << 30;
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final long[] myCounts = new long[HuffProcessor.ALPH_SIZE + 1];
+	private final int[] myTable0 = new int[HuffProcessor.ALPH_SIZE];
+	private final int[] myTable1 = new int[HuffProcessor.ALPH_SIZE];
+	private final int[] myTable2 = new int[HuffProcessor.ALPH_SIZE];
+	private final int[] myTable3 = new int[HuffProcessor.ALPH_SIZE];
+	private byte[] myChunk;
+
+	/**
+	 * Count length bytes of data
+	 * @param data holds the bytes to count
+	 * @param offset is the index of the first byte to count
+	 * @param length is the number of bytes to count
+	 */
+	public void add(byte[] data, int offset, int length) {
+
+		int end = offset + length;
+		int k = offset;
+		for (int unrolled = offset + (length & ~3); k < unrolled; k += 4) {
+			myTable0[data[k] & 0xff]++;
+			myTable1[data[k + 1] & 0xff]++;
+			myTable2[data[k + 2] & 0xff]++;
+			myTable3[data[k + 3] & 0xff]++;
+		}
+		for (; k < end; k++) {
+			myTable0[data[k] & 0xff]++;
+		}
+
+		for (int value = 0; value < HuffProcessor.ALPH_SIZE; value++) {
+			myCounts[value] += (long) myTable0[value] + myTable1[value] + myTable2[value] + myTable3[value];
+		}
+		Arrays.fill(myTable0, 0);
+		Arrays.fill(myTable1, 0);
+		Arrays.fill(myTable2, 0);
+		Arrays.fill(myTable3, 0);
+	}
+
+	/**
+	 * Count the remaining bytes of buffer, leaving it at its limit
+	 * @param buffer holds the bytes to count, e.g., a mapped file
+	 */
+	public void add(ByteBuffer buffer) {
+
+		if (buffer.hasArray()) {
+			add(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			buffer.position(buffer.limit());
+			return;
+		}
+		if (myChunk == null) {
+			myChunk = new byte[CHUNK_SIZE];
+		}
+		while (buffer.hasRemaining()) {
+			int length = Math.min(CHUNK_SIZE, buffer.remaining());
+			buffer.get(myChunk, 0, length);
+			add(myChunk, 0, length);
+		}
+	}
+
+	/**
+	 * @return count of each value so far, indexed by value; the
+	 * PSEUDO_EOF entry is 0 for the caller to set
+	 */
+	public long[] counts() {
+		return myCounts.clone();
+	}
+
+	/**
+	 * Count every byte of a file, in parallel segments of at least
+	 * MIN_SEGMENT bytes on pool, one HuffHistogram per segment
+	 * @param channel is the file to count, which is read without moving
+	 * its position
+	 * @param pool runs the segment tasks
+	 * @return count of each value, PSEUDO_EOF entry 0, as counts() gives
+	 */
+	public static long[] count(FileChannel channel, ExecutorService pool) throws IOException {
+
+		long size = channel.size();
+		int threads = pool instanceof ForkJoinPool ? ((ForkJoinPool) pool).getParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		long segment = Math.min(MAX_SEGMENT, Math.max(MIN_SEGMENT, (size + threads - 1) / threads));
+
+		List<Callable<long[]>> tasks = new ArrayList<>();
+		for (long start = 0; start < size; start += segment) {
+			long position = start;
+			long length = Math.min(segment, size - start);
+			tasks.add(() -> {
+				HuffHistogram histogram = new HuffHistogram();
+				histogram.add(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+				return histogram.myCounts;
+			});
+		}
+
+		long[] counts = new long[HuffProcessor.ALPH_SIZE + 1];
+		for (Future<long[]> future : Futures.invokeAll(pool, tasks)) {
+			long[] part = Futures.get(future);
+			for (int value = 0; value < counts.length; value++) {
+				counts[value] += part[value];
+			}
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+
+/**
+ * An InputStream that decompresses what it reads, like GZIPInputStream.
+ * Values are decoded only as they are asked for, CHUNK_SIZE at a time,
+ * and input is not retained once decoded, so memory stays bounded by one
+ * tree's tables whatever the size of the data.
+ * <P>
+ * Reads the HUFF_BLOCKS format that HuffOutputStream and compressBlocks
+ * write, stored blocks included, and the single-code HUFF_TREE,
+ * HUFF_CANONICAL, HUFF_ADAPTIVE and HUFF_DICTIONARY formats; HUFF_CONTEXT
+ * and HUFF_PARALLEL files need HuffProcessor.decompress. A read returns as soon as it has some values
+ * and no more input is ready, so adaptive data from a live pipe is seen
+ * as it arrives.
+ * <P>
+ * Each stream has its own HuffTreeReader, so streams read in turn on
+ * one thread do not disturb each other's decoders.
+ */
+
+public class HuffInputStream extends InputStream {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final BitInputStream myIn;
+	private final HuffTreeReader myReader = new HuffTreeReader();
+	private final byte[] myBuffer = new byte[CHUNK_SIZE];
+	private final boolean myBlocks;
+	private HuffDecoder myDecoder;
+	private HuffAdaptive myAdaptive;
+	private long myBlockLength, myRemaining;
+	private int myPosition, myLimit;
+	private boolean myStored, myFinished;
+
+	/**
+	 * Decompress from in, finding dictionaries in the shared registry
+	 * @param in supplies the compressed bytes
+	 * @throws HuffException if in does not start with a supported format
+	 */
+	public HuffInputStream(InputStream in) {
+		this(in, HuffDictionaryRegistry.shared());
+	}
+
+	/**
+	 * Reads the format number and first header from in
+	 * @param in supplies the compressed bytes
+	 * @param dictionaries is where HUFF_DICTIONARY data finds its codes
+	 * @throws HuffException if in does not start with a supported format
+	 */
+	public HuffInputStream(InputStream in, HuffDictionaryRegistry dictionaries) {
+		myIn = new BitInputStream(in);
+		myIn.discardMark();
+
+		int magic = myIn.readBits(HuffProcessor.BITS_PER_INT);
+		myBlocks = magic == HuffProcessor.HUFF_BLOCKS;
+		if (myBlocks) {
+			startBlock();
+		}
+		else if (magic == HuffProcessor.HUFF_TREE) {
+			myDecoder = myReader.read(myIn);
+		}
+		else if (magic == HuffProcessor.HUFF_CANONICAL) {
+			myDecoder = new HuffDecoder(HuffProcessor.readCanonicalHeader(myIn));
+		}
+		else if (magic == HuffProcessor.HUFF_ADAPTIVE) {
+			myAdaptive = new HuffAdaptive();
+		}
+		else if (magic == HuffProcessor.HUFF_DICTIONARY) {
+			int id = myIn.readBits(HuffProcessor.BITS_PER_INT);
+			if (id == -1) {
+				throw new HuffException("bad input, no dictionary id");
+			}
+			HuffDictionary dictionary = dictionaries.get(id);
+			if (dictionary == null) {
+				throw new HuffException("dictionary " + id + " is not loaded");
+			}
+			myDecoder = dictionary.myDecoder;
+		}
+		else {
+			throw new HuffException("illegal header starts with" + magic);
+		}
+	}
+
+	@Override
+	public int read() {
+		if (myPosition == myLimit && !fill()) {
+			return -1;
+		}
+		return myBuffer[myPosition++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (myPosition == myLimit && !fill()) {
+			return -1;
+		}
+		int count = Math.min(len, myLimit - myPosition);
+		System.arraycopy(myBuffer, myPosition, b, off, count);
+		myPosition += count;
+		return count;
+	}
+
+	/**
+	 * @return number of decoded bytes that can be read without decoding
+	 */
+	@Override
+	public int available() {
+		return myLimit - myPosition;
+	}
+
+	@Override
+	public void close() {
+		myIn.close();
+	}
+
+	/**
+	 * Decode up to CHUNK_SIZE values into myBuffer, stopping early if some
+	 * have been decoded and no more input is ready
+	 * @return false if there are no more values
+	 */
+	private boolean fill() {
+		int count = 0;
+		while (count < CHUNK_SIZE && !myFinished) {
+			if (count > 0 && myIn.available() == 0) break;
+
+			if (myStored) {
+				if (myRemaining == 0) {
+					startBlock();
+					continue;
+				}
+				int length = myIn.read(myBuffer, count, (int) Math.min(CHUNK_SIZE - count, myRemaining));
+				if (length == -1) {
+					throw new HuffException("bad input, stored block ends early");
+				}
+				count += length;
+				myRemaining -= length;
+				continue;
+			}
+
+			int value = nextValue();
+			if (value == HuffProcessor.PSEUDO_EOF) {
+				if (!myBlocks) {
+					myFinished = true;
+				}
+				else if (myRemaining != 0) {
+					throw new HuffException("bad input, block of " + myBlockLength + " decoded to "
+							+ (myBlockLength - myRemaining));
+				}
+				else {
+					startBlock();
+				}
+				continue;
+			}
+			if (myBlocks && myRemaining-- == 0) {
+				throw new HuffException("bad input, more than " + myBlockLength + " values in block");
+			}
+			myBuffer[count++] = (byte) value;
+		}
+		myPosition = 0;
+		myLimit = count;
+		return count > 0;
+	}
+
+	/**
+	 * @return the next value of the current code, PSEUDO_EOF at its end
+	 */
+	private int nextValue() {
+		if (myAdaptive != null) {
+			return myAdaptive.decode(myIn);
+		}
+		if (myDecoder.isEmpty()) {
+			return HuffProcessor.PSEUDO_EOF;
+		}
+		return myDecoder.next(myIn);
+	}
+
+	/**
+	 * Read the length and tree of the next block, or the length of a
+	 * stored block, or note that the final block has been reached
+	 */
+	private void startBlock() {
+		int length = myIn.readBits(HuffProcessor.BITS_PER_INT);
+		if (length == -1) {
+			throw new HuffException("bad input, no final block");
+		}
+		if (length == 0) {
+			myFinished = true;
+			return;
+		}
+		myStored = (length & HuffProcessor.STORED_BLOCK) != 0;
+		length &= ~HuffProcessor.STORED_BLOCK;
+		if (myStored && (length == 0 || length > HuffProcessor.MAX_BLOCK_SIZE)) {
+			throw new HuffException("bad input, stored block of " + length);
+		}
+		myBlockLength = myRemaining = length;
+		if (myStored) {
+			myIn.alignToByte();
+		}
+		else {
+			myDecoder = myReader.read(myIn);
+		}
+	}
+}
@@ -0,0 +1,439 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+/**
+ * Command-line front end that needs no display, for batch work:
+ * <pre>
+ *   java HuffMain compress|decompress [options] path...
+ *   java HuffMain train -d dictionary -i id path...
+ *   java HuffMain diff [-k] [-t threads] file1 file2
+ * </pre>
+ * A path is a file, a directory (its files, and with -r those of its
+ * subdirectories), or a glob such as data/*.txt when the shell has not
+ * expanded it. Files are processed concurrently on a pool of -t threads,
+ * one line is printed per file in the order given, then totals.
+ * <P>
+ * Compressing file writes file.hf; decompressing file.hf writes file,
+ * and any other name gets .uhf added. Existing outputs are only replaced
+ * with -f. With -o outputs go in that directory instead. The exit status
+ * is 1 if any file failed or any path matched no file, and 2, before any
+ * file is touched, if two inputs would write the same output, as two
+ * files of one name in different directories do with -o.
+ * <P>
+ * With -c files share a cache of codes, and the codes a file gets depend
+ * on the files compressed before it, so compressing with -c handles one
+ * file at a time in the order given, whatever -t says, and the outputs
+ * are the same every run. Mode parallel still spreads each file's blocks
+ * over the processors.
+ * <P>
+ * train writes a dictionary made from the files given, for compressing
+ * small files alike with -m dictionary -d dictionary. Decompressing such
+ * files needs the dictionary too; -d may be given more than once to load
+ * several.
+ * <P>
+ * diff checks a round trip: it prints where two files first differ, if
+ * they do, and with -k the CRC32C of each, computed on -t threads (see
+ * FileDiff). Its exit status is 0 if the files are the same, 1 if they
+ * differ and 2 if either cannot be read. HuffMainCompress and
+ * HuffMainDecompress remain
+ * the dialog-based front ends for a desktop.
+ */
+
+public class HuffMain {
+
+	private static final String SUFFIX = ".hf";
+	private static final String UNCOMPRESSED_SUFFIX = ".uhf";
+	private static final double CACHE_TOLERANCE = 0.01;
+	private static final String[] MODES = { "tree", "canonical", "context", "adaptive", "blocks", "parallel",
+			"dictionary", "sampled" };
+	private static final double DEFAULT_SAMPLE = 0.01;
+
+	private static void usage() {
+		System.err.println("usage: java HuffMain compress|decompress [options] path...");
+		System.err.println("       java HuffMain train -d dictionary -i id path...");
+		System.err.println("       java HuffMain diff [-k] [-t threads] file1 file2");
+		System.err.println("  -t threads   files processed at once (default: processors)");
+		System.err.println("  -m mode      compress with " + String.join("|", MODES) + " (default: tree)");
+		System.err.println("  -o dir       write outputs to dir (default: beside inputs)");
+		System.err.println("  -r           include files in subdirectories of directories");
+		System.err.println("  -f           replace existing outputs");
+		System.err.println("  -d file      dictionary to write, compress with, or decompress with");
+		System.err.println("  -i id        id of the dictionary to train, at least 0");
+		System.err.println("  -c entries   reuse codes and decoders across files, keeping this many;");
+		System.err.println("               compresses one file at a time, in order");
+		System.err.println("  -s fraction  part of each file mode sampled counts (default: " + DEFAULT_SAMPLE + ")");
+		System.err.println("  -k           with diff, also print each file's CRC32C");
+		System.exit(2);
+	}
+
+	/**
+	 * Outcome of one file. Plain old Java object.
+	 */
+	private static class Result {
+		final File myInput, myOutput;
+		final HuffStats myStats;
+		final long myNanos;
+		final String myError;
+
+		Result(File input, File output, HuffStats stats, long nanos, String error) {
+			myInput = input;
+			myOutput = output;
+			myStats = stats;
+			myNanos = nanos;
+			myError = error;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		if (args.length < 2 || !Arrays.asList("compress", "decompress", "train", "diff").contains(args[0])) {
+			usage();
+		}
+		boolean compress = args[0].equals("compress");
+		boolean train = args[0].equals("train");
+		boolean diff = args[0].equals("diff");
+		boolean checksums = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String mode = "tree";
+		File outputDir = null;
+		boolean recurse = false, force = false;
+		List<File> dictionaryFiles = new ArrayList<>();
+		int id = -1;
+		int cacheSize = 0;
+		double fraction = DEFAULT_SAMPLE;
+		List<String> paths = new ArrayList<>();
+
+		try {
+			for (int k = 1; k < args.length; k++) {
+				String arg = args[k];
+				if (arg.equals("-t") && k + 1 < args.length) threads = Integer.parseInt(args[++k]);
+				else if (arg.equals("-m") && k + 1 < args.length) mode = args[++k];
+				else if (arg.equals("-o") && k + 1 < args.length) outputDir = new File(args[++k]);
+				else if (arg.equals("-r")) recurse = true;
+				else if (arg.equals("-f")) force = true;
+				else if (arg.equals("-d") && k + 1 < args.length) dictionaryFiles.add(new File(args[++k]));
+				else if (arg.equals("-i") && k + 1 < args.length) id = Integer.parseInt(args[++k]);
+				else if (arg.equals("-c") && k + 1 < args.length) cacheSize = Integer.parseInt(args[++k]);
+				else if (arg.equals("-s") && k + 1 < args.length) fraction = Double.parseDouble(args[++k]);
+				else if (arg.equals("-k")) checksums = true;
+				else if (arg.startsWith("-")) usage();
+				else paths.add(arg);
+			}
+		}
+		catch (NumberFormatException e) {
+			usage();
+		}
+		if (threads < 1 || cacheSize < 0 || !(fraction > 0 && fraction <= 1) || !Arrays.asList(MODES).contains(mode) || paths.isEmpty()) {
+			usage();
+		}
+		if (train ? dictionaryFiles.size() != 1 || id < 0
+				: compress && mode.equals("dictionary") && dictionaryFiles.size() != 1) {
+			usage();
+		}
+		if (diff) {
+			if (paths.size() != 2) {
+				usage();
+			}
+			System.exit(diff(new File(paths.get(0)), new File(paths.get(1)), checksums, threads));
+		}
+
+		List<File> files = new ArrayList<>();
+		int unmatched = 0;
+		for (String path : paths) {
+			if (!expand(path, recurse, files)) {
+				System.err.println("no files match " + path);
+				unmatched++;
+			}
+		}
+
+		if (train) {
+			System.exit(unmatched == 0 && train(id, files, dictionaryFiles.get(0), force) ? 0 : 1);
+		}
+		
+		HuffDictionaryRegistry dictionaries = new HuffDictionaryRegistry();
+		HuffDictionary dictionary = null;
+		try {
+			for (File file : dictionaryFiles) {
+				dictionary = dictionaries.load(file);
+			}
+		}
+		catch (RuntimeException e) {
+			System.err.println("cannot load dictionary: " + (e.getCause() != null ? e.getCause() : e));
+			System.exit(1);
+		}
+		
+		List<File> outputs = new ArrayList<>();
+		Map<Path, File> writers = new HashMap<>();
+		for (File file : files) {
+			File output = outputFor(file, compress, outputDir);
+			File other = writers.putIfAbsent(output.toPath().toAbsolutePath().normalize(), file);
+			if (other != null) {
+				System.err.printf("%s and %s would both write %s\n", other, file, output);
+				System.exit(2);
+			}
+			outputs.add(output);
+		}
+		
+		HuffCodebookCache cache = cacheSize == 0 ? null : new HuffCodebookCache(cacheSize, CACHE_TOLERANCE);
+		if (cache != null && compress) {
+			threads = 1;   // files reach the cache in order, so output is reproducible
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Result>> results = new ArrayList<>();
+		long start = System.nanoTime();
+		for (int k = 0; k < files.size(); k++) {
+			File file = files.get(k), output = outputs.get(k);
+			String chosen = mode;
+			boolean replace = force;
+			HuffDictionary codes = dictionary;
+			double sample = fraction;
+			results.add(pool.submit(() -> process(file, output, compress, chosen, replace, dictionaries, codes,
+					sample, cache)));
+		}
+		pool.shutdown();
+
+		long bytesIn = 0, bytesOut = 0;
+		int failed = 0;
+		for (Future<Result> future : results) {
+			Result result;
+			try {
+				result = future.get();
+			}
+			catch (ExecutionException ee) {
+				throw new RuntimeException(ee.getCause());
+			}
+			if (result.myError != null) {
+				failed++;
+				System.out.printf("%s: FAILED, %s\n", result.myInput, result.myError);
+				continue;
+			}
+			long in = result.myStats.myBytesIn, out = result.myStats.myBytesOut;
+			bytesIn += in;
+			bytesOut += out;
+			String loss = result.myStats.myExactCodeBits == 0 ? ""
+					: String.format(", codes %+.2f%% over exact", 100 * result.myStats.samplingLoss());
+			if (result.myStats.myLimitedCodeBits > 0) {
+				loss += String.format(", limiting codes cost %+.3f%%", 100 * result.myStats.limitLoss());
+			}
+			System.out.printf("%s -> %s: %d to %d bytes (%.1f%%), %.1f ms, %.1f MB/s%s\n",
+					result.myInput, result.myOutput.getName(), in, out, percent(out, in),
+					result.myNanos / 1e6, megabytesPerSecond(compress ? in : out, result.myNanos), loss);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		String missing = unmatched == 0 ? "" : String.format(", %d paths matched nothing", unmatched);
+		System.out.printf("%d files, %d failed%s: %d to %d bytes (%.1f%%) in %.1f ms, %.1f MB/s on %d threads\n",
+				files.size(), failed, missing, bytesIn, bytesOut, percent(bytesOut, bytesIn), elapsed / 1e6,
+				megabytesPerSecond(compress ? bytesIn : bytesOut, elapsed), threads);
+		if (cache != null) {
+			System.out.println(cache);
+		}
+		System.exit(failed == 0 && unmatched == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Compare two files, e.g., an original and its round trip, and print
+	 * where they first differ
+	 * @param checksums says whether to print the CRC32C of each file too
+	 * @param threads is the number of threads each checksum uses
+	 * @return exit status: 0 if the files are the same, 1 if they differ,
+	 * 2 if either cannot be read
+	 */
+	private static int diff(File a, File b, boolean checksums, int threads) {
+
+		long start = System.nanoTime();
+		try {
+			long offset = FileDiff.mismatch(a, b);
+			long elapsed = System.nanoTime() - start;
+			long size = Math.max(a.length(), b.length());
+			if (offset == -1) {
+				System.out.printf("%s and %s are the same, %d bytes, %.1f ms, %.1f MB/s\n",
+						a, b, size, elapsed / 1e6, megabytesPerSecond(size, elapsed));
+			}
+			else {
+				System.out.printf("%s and %s differ at byte %d, sizes %d and %d\n",
+						a, b, offset, a.length(), b.length());
+			}
+
+			if (checksums) {
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				try {
+					for (File file : new File[] { a, b }) {
+						start = System.nanoTime();
+						long crc = FileDiff.checksum(file, pool);
+						elapsed = System.nanoTime() - start;
+						System.out.printf("%08x  %s, %.1f ms, %.1f MB/s\n", crc, file, elapsed / 1e6,
+								megabytesPerSecond(file.length(), elapsed));
+					}
+				}
+				finally {
+					pool.shutdown();
+				}
+			}
+			return offset == -1 ? 0 : 1;
+		}
+		catch (IOException | RuntimeException e) {
+			System.out.printf("cannot compare %s and %s: %s\n", a, b, e.getCause() != null ? e.getCause() : e);
+			return 2;
+		}
+	}
+
+	/**
+	 * Train a dictionary on samples and write it
+	 * @return false if it could not be written
+	 */
+	private static boolean train(int id, List<File> samples, File output, boolean force) {
+		
+		if (output.exists() && !force) {
+			System.out.printf("%s exists, use -f to replace it\n", output);
+			return false;
+		}
+		long start = System.nanoTime();
+		BitOutputStream out = null;
+		try {
+			HuffDictionary dictionary = new HuffProcessor().trainDictionary(id, samples);
+			out = new BitOutputStream(output);
+			dictionary.write(out);
+			out.close();
+		}
+		catch (RuntimeException e) {
+			discard(out, output);
+			System.out.printf("%s: FAILED, %s\n", output, e.getCause() != null ? e.getCause() : e);
+			return false;
+		}
+		System.out.printf("%s: dictionary %d from %d files, %.1f ms\n", output, id, samples.size(),
+				(System.nanoTime() - start) / 1e6);
+		return true;
+	}
+	
+	/**
+	 * Add the files that path names to files
+	 * @param path is a file, a directory, or a glob over file names
+	 * @param recurse says whether directories include their subdirectories
+	 * @param files receives the files found, sorted within each directory
+	 * @return false if path names no file
+	 */
+	private static boolean expand(String path, boolean recurse, List<File> files) {
+
+		File file = new File(path);
+		if (file.isFile()) {
+			files.add(file);
+			return true;
+		}
+
+		int before = files.size();
+		try {
+			if (file.isDirectory()) {
+				try (Stream<Path> found = recurse ? Files.walk(file.toPath()) : Files.list(file.toPath())) {
+					found.filter(Files::isRegularFile).sorted().forEach(p -> files.add(p.toFile()));
+				}
+			}
+			else if (path.contains("*") || path.contains("?") || path.contains("[") || path.contains("{")) {
+				Path glob = Paths.get(path);
+				Path dir = glob.getParent() == null ? Paths.get(".") : glob.getParent();
+				PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob.getFileName());
+				try (Stream<Path> found = Files.list(dir)) {
+					found.filter(p -> Files.isRegularFile(p) && matcher.matches(p.getFileName()))
+							.sorted().forEach(p -> files.add(p.toFile()));
+				}
+			}
+		}
+		catch (IOException | InvalidPathException e) {
+			System.err.println(path + ": " + e.getMessage());
+		}
+		return files.size() > before;
+	}
+
+	/**
+	 * @return the file to write for input
+	 */
+	private static File outputFor(File input, boolean compress, File outputDir) {
+
+		String name = input.getName();
+		if (compress) {
+			name += SUFFIX;
+		}
+		else if (name.endsWith(SUFFIX) && name.length() > SUFFIX.length()) {
+			name = name.substring(0, name.length() - SUFFIX.length());
+		}
+		else {
+			name += UNCOMPRESSED_SUFFIX;
+		}
+		return new File(outputDir != null ? outputDir : input.getAbsoluteFile().getParentFile(), name);
+	}
+
+	/**
+	 * Compress or decompress one file; a partial output is deleted if
+	 * anything goes wrong
+	 * @param dictionaries holds the dictionaries decompressing may need
+	 * @param dictionary holds the codes for mode dictionary
+	 * @param fraction is the part of the file mode sampled counts
+	 * @param cache is shared by all files, or null
+	 * @return the outcome, with an error message rather than an exception
+	 */
+	private static Result process(File input, File output, boolean compress, String mode, boolean force,
+			HuffDictionaryRegistry dictionaries, HuffDictionary dictionary, double fraction, HuffCodebookCache cache) {
+
+		long start = System.nanoTime();
+		if (output.exists() && !force) {
+			return new Result(input, output, null, 0, output + " exists, use -f to replace it");
+		}
+		BitInputStream in = null;
+		BitOutputStream out = null;
+		try {
+			in = BitInputStream.map(input);
+			out = new BitOutputStream(output);
+			HuffProcessor processor = new HuffProcessor(0, HuffCodebook.MAX_CODE_LENGTH, dictionaries, cache);
+			HuffStats stats;
+			if (!compress) stats = processor.decompress(in, out);
+			else if (mode.equals("canonical")) stats = processor.compressCanonical(in, out);
+			else if (mode.equals("context")) stats = processor.compressContext(in, out);
+			else if (mode.equals("adaptive")) stats = processor.compressAdaptive(in, out);
+			else if (mode.equals("blocks")) stats = processor.compressBlocks(in, out);
+			else if (mode.equals("parallel")) stats = processor.compressParallel(in, out);
+			else if (mode.equals("dictionary")) stats = processor.compressDictionary(in, out, dictionary);
+			else if (mode.equals("sampled")) stats = processor.compressSampled(in, out, fraction);
+			else stats = processor.compress(in, out);
+			return new Result(input, output, stats, System.nanoTime() - start, null);
+		}
+		catch (RuntimeException e) {
+			discard(out, output);
+			String message = e.getCause() != null ? e.getCause().toString() : e.toString();
+			return new Result(input, output, null, System.nanoTime() - start, message);
+		}
+		finally {
+			if (in != null) {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Close out, if it was opened, and delete the partial output it was
+	 * writing. The file is closed first, since an open file cannot be
+	 * deleted on every platform; out may already be closed, or fail again
+	 * as it is flushed, and is closed all the same.
+	 */
+	private static void discard(BitOutputStream out, File output) {
+		if (out != null) {
+			try {
+				out.close();
+			}
+			catch (RuntimeException e) {
+				// the failure being reported is the one that matters
+			}
+		}
+		output.delete();
+	}
+
+	private static double percent(long part, long whole) {
+		return whole == 0 ? 0 : 100.0 * part / whole;
+	}
+
+	private static double megabytesPerSecond(long bytes, long nanos) {
+		return nanos == 0 ? 0 : bytes / (double) (1 << 20) / (nanos / 1e9);
+	}
+}
@@ -10,7 +10,7 @@ public class HuffMainCompress {
 			System.err.println("input or output file cancelled");
 			return;
 		}
-		BitInputStream bis = new BitInputStream(inf);
+		BitInputStream bis = BitInputStream.map(inf);
 		BitOutputStream bos = new BitOutputStream(outf);
 		HuffProcessor hp = new HuffProcessor();
 		hp.compress(bis, bos);
@@ -12,7 +12,7 @@ public class HuffMainDecompress {
 			System.err.println("input or output file cancelled");
 			return;
 		}
-		BitInputStream bis = new BitInputStream(inf);
+		BitInputStream bis = BitInputStream.map(inf);
 		BitOutputStream bos = new BitOutputStream(outf);
 		HuffProcessor hp = new HuffProcessor();
 		hp.decompress(bis, bos);
@@ -10,7 +10,8 @@
 
 public class HuffNode implements Comparable<HuffNode> {
 
-	public int myValue, myWeight;
+	public int myValue;
+	public long myWeight;
 	public HuffNode myLeft, myRight;
 
 	/**
@@ -21,7 +22,7 @@ public class HuffNode implements Comparable<HuffNode> {
 	 * @param weight
 	 *            is used for comparison (e.g., count of # occurrences)
 	 */
-	public HuffNode(int value, int weight) {
+	public HuffNode(int value, long weight) {
 		this(value, weight, null, null);
 	}
 
@@ -37,7 +38,7 @@ public class HuffNode implements Comparable<HuffNode> {
 	 * @param rtree
 	 *            is right subtree
 	 */
-	public HuffNode(int value, int weight, HuffNode left, HuffNode right) {
+	public HuffNode(int value, long weight, HuffNode left, HuffNode right) {
 		myValue = value;
 		myWeight = weight;
 		myLeft = left;
@@ -52,7 +53,7 @@ public class HuffNode implements Comparable<HuffNode> {
 	 */
 	@Override
 	public int compareTo(HuffNode other) {
-		return myWeight - other.myWeight;
+		return Long.compare(myWeight, other.myWeight);
 	}
 
 	@Override
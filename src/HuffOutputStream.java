@@ -0,0 +1,127 @@
+import java.io.*;
+
+/**
+ * An OutputStream that compresses what is written to it, like
+ * GZIPOutputStream, in the HUFF_BLOCKS format of compressBlocks. Bytes
+ * are collected into a block of at most blockSize bytes; each full block
+ * is counted, given its own tree and written at once, so no more than
+ * one block is ever held and nothing is read twice. Anything that
+ * decompresses HUFF_BLOCKS, including HuffInputStream, can read the
+ * result.
+ * <P>
+ * flush() ends the current block early and passes on every complete
+ * byte written so far, for pipes and sockets where the reader must see
+ * the data now; the last few bits of a block wait for the next block or
+ * close(). close() writes the final block and closes the underlying
+ * stream.
+ */
+
+public class HuffOutputStream extends OutputStream {
+
+	private final HuffProcessor myProcessor;
+	private final BitOutputStream myOut;
+	private final byte[] myBlock;
+	private final HuffStats myStats = new HuffStats();
+	private int mySize;
+	private boolean myClosed;
+
+	/**
+	 * Compress to out in DEFAULT_BLOCK_SIZE blocks
+	 * @param out receives the compressed bytes
+	 */
+	public HuffOutputStream(OutputStream out) {
+		this(out, HuffProcessor.DEFAULT_BLOCK_SIZE, new HuffProcessor());
+	}
+
+	/**
+	 * @param out receives the compressed bytes
+	 * @param blockSize is the most bytes buffered and coded with one tree,
+	 * on [1, MAX_BLOCK_SIZE]
+	 * @param processor builds the codes, e.g., with a code length limit
+	 * or codebook cache
+	 */
+	public HuffOutputStream(OutputStream out, int blockSize, HuffProcessor processor) {
+		HuffProcessor.checkBlockSize(blockSize);
+		myProcessor = processor;
+		myOut = new BitOutputStream(out);
+		myBlock = new byte[blockSize];
+		myOut.writeBits(HuffProcessor.BITS_PER_INT, HuffProcessor.HUFF_BLOCKS);
+		myStats.myPeakBufferBytes = blockSize;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureOpen();
+		if (mySize == myBlock.length) {
+			writeBlock();
+		}
+		myBlock[mySize++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureOpen();
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			if (mySize == myBlock.length) {
+				writeBlock();
+			}
+			int count = Math.min(len, myBlock.length - mySize);
+			System.arraycopy(b, off, myBlock, mySize, count);
+			mySize += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Write the bytes buffered so far as a block, then pass on every
+	 * complete compressed byte
+	 */
+	@Override
+	public void flush() {
+		ensureOpen();
+		writeBlock();
+		myOut.flushBytes();
+	}
+
+	/**
+	 * Write any buffered bytes and the final block, then close the
+	 * underlying stream. Closing again does nothing.
+	 */
+	@Override
+	public void close() {
+		if (myClosed) return;
+		writeBlock();
+		myOut.writeBits(HuffProcessor.BITS_PER_INT, 0);
+		myOut.close();
+		myClosed = true;
+		myStats.myBytesOut = (myOut.bitsWritten() + HuffProcessor.BITS_PER_WORD - 1) / HuffProcessor.BITS_PER_WORD;
+	}
+
+	/**
+	 * @return measurements of the blocks written so far; byte counts out
+	 * are filled in by close
+	 */
+	public HuffStats stats() {
+		return myStats;
+	}
+
+	/**
+	 * Compress the buffered bytes, if any, as one block
+	 */
+	private void writeBlock() {
+		if (mySize > 0) {
+			myProcessor.writeBlock(myBlock, mySize, myOut, myStats);
+			mySize = 0;
+		}
+	}
+
+	private void ensureOpen() {
+		if (myClosed) {
+			throw new HuffException("stream is closed");
+		}
+	}
+}
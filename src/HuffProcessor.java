@@ -1,7 +1,12 @@
 // Ritik Goyal
 // Bryan Tong
 
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Although this class has a history of several years,
@@ -22,8 +27,28 @@ public class HuffProcessor {
 	public static final int PSEUDO_EOF = ALPH_SIZE;
 	public static final int HUFF_NUMBER = 0xface8200;
 	public static final int HUFF_TREE  = HUFF_NUMBER | 1;
+	public static final int HUFF_BLOCKS = HUFF_NUMBER | 2;
+	public static final int HUFF_PARALLEL = HUFF_NUMBER | 3;
+	public static final int HUFF_CANONICAL = HUFF_NUMBER | 4;
+	public static final int HUFF_ADAPTIVE = HUFF_NUMBER | 5;
+	public static final int HUFF_CONTEXT = HUFF_NUMBER | 6;
+	public static final int HUFF_DICTIONARY = HUFF_NUMBER | 7;
+	
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+	public static final int STORED_BLOCK = 1 << 31;
+	public static final int MAX_BLOCK_SIZE = 1 << 24;
+	private static final int CHUNK_SIZE = 8192;
+	private static final int SAMPLE_SIZE = 1 << 16;
+	private static final int LENGTH_WIDTH_BITS = 3;
+	private static final int ZERO_RUN_BITS = 5;
+	private static final int MAX_ZERO_RUN = 1 << ZERO_RUN_BITS;
+	private static final int CONTEXTS = ALPH_SIZE;
+	private static final ThreadLocal<HuffTreeReader> ourTreeReaders = ThreadLocal.withInitial(HuffTreeReader::new);
 
-	private final int myDebugLevel;
+	private final int myMaxCodeLength;
+	private final HuffDictionaryRegistry myDictionaries;
+	private final HuffCodebookCache myCache;
 	
 	public static final int DEBUG_HIGH = 4;
 	public static final int DEBUG_LOW = 1;
@@ -33,7 +58,50 @@ public class HuffProcessor {
 	}
 	
 	public HuffProcessor(int debug) {
-		myDebugLevel = debug;
+		this(debug, HuffCodebook.MAX_CODE_LENGTH);
+	}
+	
+	/**
+	 * @param debug is the debug level, e.g., DEBUG_LOW, kept for existing
+	 * callers; nothing is printed, every call returns its measurements
+	 * as HuffStats instead
+	 * @param maxCodeLength is the longest code the compressor may use, on
+	 * [BITS_PER_WORD + 1, 32]; shorter limits bound decoder table sizes at a
+	 * small cost in compression on skewed inputs
+	 */
+	public HuffProcessor(int debug, int maxCodeLength) {
+		this(debug, maxCodeLength, HuffDictionaryRegistry.shared());
+	}
+	
+	/**
+	 * @param debug is the debug level, as for HuffProcessor(debug, maxCodeLength)
+	 * @param maxCodeLength is the longest code the compressor may use, as
+	 * for HuffProcessor(debug, maxCodeLength)
+	 * @param dictionaries is where decompress finds the dictionaries that
+	 * HUFF_DICTIONARY files name
+	 */
+	public HuffProcessor(int debug, int maxCodeLength, HuffDictionaryRegistry dictionaries) {
+		this(debug, maxCodeLength, dictionaries, null);
+	}
+	
+	/**
+	 * @param debug is the debug level, as for HuffProcessor(debug, maxCodeLength)
+	 * @param maxCodeLength is the longest code the compressor may use, as
+	 * for HuffProcessor(debug, maxCodeLength)
+	 * @param dictionaries is where decompress finds dictionaries
+	 * @param cache supplies codebooks for counts and decoders for headers
+	 * like ones seen before, and may be shared by processors; null to
+	 * build them every time
+	 */
+	public HuffProcessor(int debug, int maxCodeLength, HuffDictionaryRegistry dictionaries,
+			HuffCodebookCache cache) {
+		if (maxCodeLength < BITS_PER_WORD + 1 || maxCodeLength > HuffCodebook.MAX_CODE_LENGTH) {
+			throw new HuffException("max code length must be on [" + (BITS_PER_WORD + 1) + ", "
+					+ HuffCodebook.MAX_CODE_LENGTH + "], was " + maxCodeLength);
+		}
+		myMaxCodeLength = maxCodeLength;
+		myDictionaries = dictionaries;
+		myCache = cache;
 	}
 
 	/**
@@ -43,224 +111,1823 @@ public class HuffProcessor {
 	 *            Buffered bit stream of the file to be compressed.
 	 * @param out
 	 *            Buffered bit stream writing to the output file.
+	 * @return time spent in each phase, sizes and code statistics
+	 */
+	public HuffStats compress(BitInputStream in, BitOutputStream out) {
+		return compressWhole(in, out, HUFF_TREE, 0);
+	}
+	
+	/**
+	 * Compresses a file like compress, and to the same HUFF_TREE format,
+	 * but with codes made from counts of a sample of the file rather than
+	 * of all of it, so the file is read about once instead of twice. The
+	 * sample is SAMPLE_SIZE bytes at evenly spaced offsets, fraction of
+	 * the file in all. Its counts are scaled to the file size and every
+	 * value gets a count of at least 1, since bytes outside the sample
+	 * may be any value.
+	 * <P>
+	 * Only a stream made by BitInputStream.map can be sampled; others, and
+	 * files the sample would mostly cover, are counted in full as compress
+	 * does. The returned stats give the code bits an exact tree would have
+	 * taken, from counts made while encoding, so the cost of sampling is
+	 * reported along with the savings.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
+	 * @param fraction is the part of the file to sample, on (0, 1]
+	 * @return time spent in each phase, sizes and code statistics,
+	 * including myExactCodeBits
+	 */
+	public HuffStats compressSampled(BitInputStream in, BitOutputStream out, double fraction) {
+		
+		if (!(fraction > 0 && fraction <= 1)) {
+			throw new HuffException("sample fraction must be on (0, 1], was " + fraction);
+		}
+		return compressWhole(in, out, HUFF_TREE, fraction);
+	}
+	
+	/**
+	 * Compresses a file like compress, but with a canonical code whose
+	 * header holds only the code length of each value, run-length encoded,
+	 * rather than the shape of the tree. Headers are much smaller, which
+	 * matters for small files, and the decoder builds its tables straight
+	 * from the lengths.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
+	 */
+	public HuffStats compressCanonical(BitInputStream in, BitOutputStream out) {
+		return compressWhole(in, out, HUFF_CANONICAL, 0);
+	}
+	
+	/**
+	 * Compresses a file with one code for all of it: count, build the
+	 * codes, write the header, then read the file again to encode it
+	 * @param format is HUFF_TREE or HUFF_CANONICAL, which header to write
+	 * @param fraction is the part of the file to count codes from, as
+	 * compressSampled takes it, or 0 to count all of it
+	 * @return time spent in each phase, sizes and code statistics, with
+	 * myExactCodeBits if fraction is not 0
+	 */
+	private HuffStats compressWhole(BitInputStream in, BitOutputStream out, int format, double fraction) {
+		
+		boolean sampled = fraction != 0;
+		HuffStats stats = new HuffStats();
+		long start = System.nanoTime();
+		long[] counts = sampled ? readforSampleCounts(in, fraction) : readforCounts(in);
+		stats.myCountNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		HuffCodebook codings = cachedCodings(counts);
+		stats.myTreeNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		out.writeBits(BITS_PER_INT, format);
+		if (format == HUFF_CANONICAL) {
+			writeCanonicalHeader(codings, out);
+		}
+		else {
+			writeTreeHeader(codings, out);
+		}
+		stats.myHeaderNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		stats.myPeakBufferBytes = CHUNK_SIZE + (sampled ? SAMPLE_SIZE : 0) + in.retainedBytes();
+		HuffHistogram histogram = sampled ? new HuffHistogram() : null;
+		writeCompressedBits(codings, in, out, histogram);
+		out.close();
+		stats.myEncodeNanos = System.nanoTime() - start;
+		
+		if (sampled) {
+			counts = histogram.counts();
+			counts[PSEUDO_EOF] = 1;
+			byte[] lengths = HuffCodebook.optimalLengths(counts);
+			for (int value = 0; value < counts.length; value++) {
+				stats.myExactCodeBits += counts[value] * lengths[value];
+			}
+		}
+		addCodes(stats, counts, codings);
+		stats.myBytesIn = stats.mySymbols - 1;
+		return finishStats(stats, out);
+	}
+	
+	/**
+	 * Builds a dictionary for compressDictionary from sample objects like
+	 * the ones it will compress. Codes are made from the byte counts of
+	 * all samples together, with one PSEUDO_EOF per sample and a count of
+	 * 1 for any value no sample has, so every value can be coded.
+	 *
+	 * @param id identifies the dictionary in compressed files, at least 0
+	 * @param samples are files of typical content
+	 * @return the dictionary, not yet registered anywhere
+	 */
+	public HuffDictionary trainDictionary(int id, List<File> samples) {
+		
+		long[] counts = new long[ALPH_SIZE + 1];
+		for (File sample : samples) {
+			BitInputStream in = BitInputStream.map(sample);
+			try {
+				long[] sampleCounts = readforCounts(in);
+				for (int value = 0; value < counts.length; value++) {
+					counts[value] += sampleCounts[value];
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		for (int value = 0; value < counts.length; value++) {
+			counts[value] = Math.max(1, counts[value]);
+		}
+		return new HuffDictionary(id, makeCodingsFromCounts(counts));
+	}
+	
+	/**
+	 * Compresses a stream in one pass with the codes of a shared
+	 * dictionary. After HUFF_DICTIONARY come BITS_PER_INT bits of the
+	 * dictionary id and then the codes: no header, no counting pass and
+	 * no tree to build, which suits many small objects alike enough to
+	 * share one set of codes. Decompressing needs the same dictionary in
+	 * the processor's registry.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the data to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing the compressed data.
+	 * @param dictionary holds the codes to use, e.g., from trainDictionary
+	 */
+	public HuffStats compressDictionary(BitInputStream in, BitOutputStream out, HuffDictionary dictionary) {
+		
+		HuffStats stats = new HuffStats();
+		long start = System.nanoTime();
+		in.discardMark();
+		out.writeBits(BITS_PER_INT, HUFF_DICTIONARY);
+		out.writeBits(BITS_PER_INT, dictionary.myId);
+		stats.myHeaderNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		HuffHistogram histogram = new HuffHistogram();
+		byte[] chunk = new byte[CHUNK_SIZE];
+		while (true) {
+			int length = in.read(chunk, 0, chunk.length);
+			if (length == -1) break;
+			histogram.add(chunk, 0, length);
+			writeCodes(dictionary.myCodings, chunk, 0, length, out);
+		}
+		writeCode(dictionary.myCodings, PSEUDO_EOF, out);
+		out.close();
+		stats.myEncodeNanos = System.nanoTime() - start;
+		
+		long[] counts = histogram.counts();
+		counts[PSEUDO_EOF] = 1;
+		addCodes(stats, counts, dictionary.myCodings);
+		stats.myBytesIn = stats.mySymbols - 1;
+		stats.myPeakBufferBytes = CHUNK_SIZE;
+		return finishStats(stats, out);
+	}
+	
+	/**
+	 * Compresses a stream in one pass with adaptive Huffman codes (see
+	 * HuffAdaptive). There is no header and no counting pass: each byte is
+	 * coded as soon as it is read, using a tree both sides update after
+	 * every symbol. Whenever in has nothing more ready, complete output
+	 * bytes are flushed, so this suits live sockets and pipes.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the data to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing the compressed data.
+	 */
+	public HuffStats compressAdaptive(BitInputStream in, BitOutputStream out) {
+		
+		HuffStats stats = new HuffStats();
+		long start = System.nanoTime();
+		in.discardMark();
+		HuffAdaptive coder = new HuffAdaptive();
+		
+		out.writeBits(BITS_PER_INT, HUFF_ADAPTIVE);
+		while (true) {
+			if (in.available() == 0) {
+				out.flushBytes();
+			}
+			int value = in.readBits(BITS_PER_WORD);
+			if (value == -1) break;
+			coder.encode(value, out);
+			stats.myCounts[value]++;
+		}
+		coder.encode(PSEUDO_EOF, out);
+		stats.myCodeBits = out.bitsWritten() - BITS_PER_INT;
+		out.close();
+		stats.myEncodeNanos = System.nanoTime() - start;
+		
+		stats.myCounts[PSEUDO_EOF] = 1;
+		for (long count : stats.myCounts) {
+			stats.mySymbols += count;
+		}
+		stats.myBytesIn = stats.mySymbols - 1;
+		return finishStats(stats, out);
+	}
+	
+	/**
+	 * Compresses a file with order-1 context modeling: the code for each
+	 * byte comes from a table chosen by the byte before it, which on text
+	 * is much shorter than one code for all bytes. Contexts whose byte
+	 * distributions are alike share a table (see clusterContexts), so
+	 * only as many canonical headers are written as pay for themselves.
+	 * <P>
+	 * After HUFF_CONTEXT come BITS_PER_WORD bits of table count - 1, the
+	 * table number of each of the CONTEXTS contexts in just enough bits,
+	 * then each table as writeCanonicalHeader writes it. The first byte
+	 * is coded in context 0 and PSEUDO_EOF in the context of the last byte.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
 	 */
-	public void compress(BitInputStream in, BitOutputStream out) {
+	public HuffStats compressContext(BitInputStream in, BitOutputStream out) {
 		
-		int [] counts = readforCounts(in);
-		HuffNode root = makeTreeFromCounts(counts);
-		String[] codings = makeCodingsFromTree(root);
+		HuffStats stats = new HuffStats();
+		long start = System.nanoTime();
+		long[][] counts = readforContextCounts(in);
+		stats.myCountNanos = System.nanoTime() - start;
 		
-		out.writeBits(BITS_PER_INT, HUFF_TREE);
-		writeTreeHeader(root, out);
+		start = System.nanoTime();
+		int[] contextMap = clusterContexts(counts);
+		int tables = 0;
+		for (int table : contextMap) {
+			tables = Math.max(tables, table + 1);
+		}
 		
+		long[][] tableCounts = new long[tables][ALPH_SIZE + 1];
+		for (int context = 0; context < CONTEXTS; context++) {
+			for (int value = 0; value <= ALPH_SIZE; value++) {
+				tableCounts[contextMap[context]][value] += counts[context][value];
+			}
+		}
+		HuffCodebook[] codings = new HuffCodebook[tables];
+		for (int table = 0; table < tables; table++) {
+			codings[table] = makeContextCodings(tableCounts[table]);
+		}
+		stats.myTreeNanos = System.nanoTime() - start;
+		stats.myTables = tables;
+		
+		start = System.nanoTime();
+		out.writeBits(BITS_PER_INT, HUFF_CONTEXT);
+		out.writeBits(BITS_PER_WORD, tables - 1);
+		int width = BITS_PER_INT - Integer.numberOfLeadingZeros(tables - 1);
+		for (int context = 0; context < CONTEXTS && width > 0; context++) {
+			out.writeBits(width, contextMap[context]);
+		}
+		for (HuffCodebook table : codings) {
+			writeCanonicalHeader(table, out);
+		}
+		stats.myHeaderNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		stats.myPeakBufferBytes = CHUNK_SIZE + in.retainedBytes();
 		in.reset();
-		writeCompressedBits(codings, in, out);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int previous = 0;
+		int length = in.read(chunk, 0, chunk.length);
+		while (length != -1) {
+			writeContextCodes(codings, contextMap, previous, chunk, length, out);
+			previous = chunk[length - 1] & 0xff;
+			length = in.read(chunk, 0, chunk.length);
+		}
+		writeCode(codings[contextMap[previous]], PSEUDO_EOF, out);
 		out.close();
+		stats.myEncodeNanos = System.nanoTime() - start;
+		
+		for (int table = 0; table < tables; table++) {
+			addCodes(stats, tableCounts[table], codings[table]);
+		}
+		stats.myBytesIn = stats.mySymbols - 1;
+		return finishStats(stats, out);
 	}
 	
 	/**
-	 * Determines frequencies 
-	 * @param in 
-	 * @return int array of frequencies
+	 * Compresses a file in a single pass using DEFAULT_BLOCK_SIZE blocks.
+	 * @see #compressBlocks(BitInputStream, BitOutputStream, int)
+	 */
+	public HuffStats compressBlocks(BitInputStream in, BitOutputStream out) {
+		return compressBlocks(in, out, DEFAULT_BLOCK_SIZE);
+	}
+	
+	/**
+	 * Compresses a file in a single pass, one block at a time. Each block
+	 * gets its own tree built from its own counts, so memory is bounded by
+	 * blockSize rather than file size and in is never reset, which also
+	 * makes this usable on pipes and other non-seekable sources.
+	 * <P>
+	 * Format is HUFF_BLOCKS, then per block BITS_PER_INT bits of block
+	 * length, a tree header and the block's codes ending with PSEUDO_EOF,
+	 * then a block length of 0. A block that coding would not make smaller,
+	 * e.g., of already compressed data, is stored instead: its length has
+	 * STORED_BLOCK set and is followed by zero bits to a byte boundary and
+	 * the block's bytes as they are.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
+	 * @param blockSize
+	 *            number of input bytes per block
+	 * @return time spent in each phase, summed over blocks, sizes and code
+	 *            statistics
+	 */
+	public HuffStats compressBlocks(BitInputStream in, BitOutputStream out, int blockSize) {
+		return compressBlocks(in, out, blockSize, null, 0);
+	}
+	
+	/**
+	 * Compresses from one channel to another like compressBlocks, reading
+	 * and writing through direct buffers of bufferSize bytes with no
+	 * streams in between, e.g., for a service built on NIO. When in is a
+	 * FileChannel, stored blocks go from it to out with transferTo rather
+	 * than through the buffers. Neither channel is closed.
+	 *
+	 * @param in is read from its position to its end; must be blocking
+	 * @param out receives the compressed data; must be blocking
+	 * @param blockSize is the number of input bytes per block
+	 * @param bufferSize is the size of each direct buffer, at least 8
+	 * @return time spent in each phase, summed over blocks, sizes and code
+	 *            statistics
+	 */
+	public HuffStats compressBlocks(ReadableByteChannel in, WritableByteChannel out, int blockSize, int bufferSize) {
+		
+		FileChannel file = in instanceof FileChannel ? (FileChannel) in : null;
+		try {
+			long position = file == null ? 0 : file.position();
+			return compressBlocks(new BitInputStream(in, bufferSize), new BitOutputStream(out, bufferSize),
+					blockSize, file, position);
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+	
+	/**
+	 * Compresses a file with a single tree like compress, reading and
+	 * writing through direct buffers of bufferSize bytes. in is read
+	 * twice, the second time after moving it back to its position at the
+	 * start. Neither channel is closed.
+	 *
+	 * @param in is read from its position to its end
+	 * @param out receives the compressed data; must be blocking
+	 * @param bufferSize is the size of each direct buffer, at least 8
+	 * @return time spent in each phase, sizes and code statistics
+	 */
+	public HuffStats compress(FileChannel in, WritableByteChannel out, int bufferSize) {
+		return compress(new BitInputStream(in, bufferSize), new BitOutputStream(out, bufferSize));
+	}
+	
+	/**
+	 * Decompresses from one channel to another like decompress, reading
+	 * and writing through direct buffers of bufferSize bytes. Neither
+	 * channel is closed.
+	 *
+	 * @param in holds compressed data from its position on; must be blocking
+	 * @param out receives the decompressed data; must be blocking
+	 * @param bufferSize is the size of each direct buffer, at least 8
+	 * @return time spent reading headers and decoding, and sizes
+	 */
+	public HuffStats decompress(ReadableByteChannel in, WritableByteChannel out, int bufferSize) {
+		return decompress(new BitInputStream(in, bufferSize), new BitOutputStream(out, bufferSize));
+	}
+	
+	/**
+	 * Compresses blocks as compressBlocks does
+	 * @param file is where stored blocks are copied from with transferTo,
+	 * or null to copy them from the block buffer
+	 * @param position is the offset in file of the first byte in reads
+	 */
+	private HuffStats compressBlocks(BitInputStream in, BitOutputStream out, int blockSize,
+			FileChannel file, long position) {
+		
+		checkBlockSize(blockSize);
+		in.discardMark();
+		byte[] block = new byte[blockSize];
+		HuffStats stats = new HuffStats();
+		
+		out.writeBits(BITS_PER_INT, HUFF_BLOCKS);
+		while (true) {
+			int length = in.read(block, 0, blockSize);
+			if (length == -1) break;
+			writeBlock(block, length, out, stats, file, position);
+			position += length;
+		}
+		out.writeBits(BITS_PER_INT, 0);
+		out.close();
+		
+		stats.myPeakBufferBytes = blockSize;
+		return finishStats(stats, out);
+	}
+	
+	/**
+	 * Compresses a file using DEFAULT_BLOCK_SIZE blocks on the common ForkJoinPool.
+	 * @see #compressParallel(BitInputStream, BitOutputStream, int, ExecutorService)
+	 */
+	public HuffStats compressParallel(BitInputStream in, BitOutputStream out) {
+		return compressParallel(in, out, DEFAULT_BLOCK_SIZE, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Compresses a file as independent blocks encoded concurrently. Blocks
+	 * are read in order, a task on pool counts, builds a tree and encodes
+	 * each one, and encoded blocks are written in input order. A block's
+	 * encoding depends only on its bytes, so the output is the same no
+	 * matter how many threads pool has. Only a few blocks per thread are
+	 * held in memory at once.
+	 * <P>
+	 * With a cache, the codebook a block gets also depends on the blocks
+	 * that reached the cache before it, so blocks are counted and their
+	 * codebooks looked up on the calling thread in input order, and only
+	 * encoding runs on pool. Given the same cache contents, the output is
+	 * then still the same for any number of threads.
+	 * <P>
+	 * Format is HUFF_PARALLEL, BITS_PER_INT bits of block size, then per
+	 * block BITS_PER_INT bits each of block length and encoded bit count,
+	 * followed by the encoded block (tree header, codes, PSEUDO_EOF) padded
+	 * to a byte, then a block length of 0. Every block starts on a byte
+	 * boundary, and a HuffBlockIndex trailer after the final block records
+	 * where each one is so decompressParallel can decode them concurrently.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
+	 * @param blockSize
+	 *            number of input bytes per block
+	 * @param pool
+	 *            runs the per-block tasks
+	 * @return time spent in each phase, summed over blocks and so over
+	 *            threads, sizes and code statistics
+	 */
+	public HuffStats compressParallel(BitInputStream in, BitOutputStream out, int blockSize, ExecutorService pool) {
+		
+		checkBlockSize(blockSize);
+		in.discardMark();
+		
+		int threads = pool instanceof ForkJoinPool ? ((ForkJoinPool) pool).getParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		int window = 2 * threads;
+		Deque<Future<EncodedBlock>> pending = new ArrayDeque<>();
+		HuffBlockIndex index = new HuffBlockIndex();
+		long position = 2 * Integer.BYTES;
+		HuffStats stats = new HuffStats();
+		
+		out.writeBits(BITS_PER_INT, HUFF_PARALLEL);
+		out.writeBits(BITS_PER_INT, blockSize);
+		try {
+			while (true) {
+				byte[] block = new byte[blockSize];
+				int length = in.read(block, 0, blockSize);
+				if (length == -1) break;
+				pending.add(pool.submit(blockTask(block, length)));
+				stats.myPeakBufferBytes = Math.max(stats.myPeakBufferBytes, (long) pending.size() * blockSize);
+				if (pending.size() >= window) {
+					position = writeEncodedBlock(Futures.await(pending.remove()), position, index, out, stats);
+				}
+			}
+			while (!pending.isEmpty()) {
+				position = writeEncodedBlock(Futures.await(pending.remove()), position, index, out, stats);
+			}
+		}
+		catch (RuntimeException e) {
+			for (Future<EncodedBlock> f : pending) {
+				f.cancel(true);
+			}
+			throw e;
+		}
+		out.writeBits(BITS_PER_INT, 0);
+		index.write(out, position + Integer.BYTES);
+		out.close();
+		return finishStats(stats, out);
+	}
+	
+	static void checkBlockSize(int blockSize) {
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new HuffException("block size must be on [1, " + MAX_BLOCK_SIZE + "], was " + blockSize);
+		}
+	}
+	
+	/**
+	 * A block encoded by a compressParallel task. Plain old Java object.
+	 */
+	private static class EncodedBlock {
+		final int myLength, myBits;
+		final byte[] myBytes;
+		final HuffStats myStats;
+		
+		EncodedBlock(int length, int bits, byte[] bytes, HuffStats stats) {
+			myLength = length;
+			myBits = bits;
+			myBytes = bytes;
+			myStats = stats;
+		}
+	}
+	
+	/**
+	 * Make the task that encodes one block for compressParallel. With no
+	 * cache the task does all the work; with one, the block is counted
+	 * and its codebook found here, on the calling thread, so blocks reach
+	 * the cache in input order whatever order tasks run in.
+	 * @param block holds the bytes to compress
+	 * @param length is the number of bytes of block in use
+	 * @return task giving the encoded block
+	 */
+	private Callable<EncodedBlock> blockTask(byte[] block, int length) {
+		
+		if (myCache == null) {
+			return () -> encodeBlock(block, length);
+		}
+		HuffStats stats = new HuffStats();
+		long start = System.nanoTime();
+		long[] counts = countBlock(block, length);
+		stats.myCountNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		HuffCodebook codings = cachedCodings(counts);
+		stats.myTreeNanos = System.nanoTime() - start;
+		return () -> encodeBlock(counts, codings, block, length, stats);
+	}
+	
+	/**
+	 * Encodes one block into its own byte array, padded to a byte
+	 * @param block holds the bytes to compress
+	 * @param length is the number of bytes of block in use
+	 * @return the encoded block
+	 */
+	private EncodedBlock encodeBlock(byte[] block, int length) {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+		BitOutputStream out = new BitOutputStream(bytes);
+		HuffStats stats = new HuffStats();
+		writeBlockCodes(block, length, out, stats);
+		out.close();
+		return new EncodedBlock(length, (int) out.bitsWritten(), bytes.toByteArray(), stats);
+	}
+	
+	/**
+	 * Encodes one block already counted, with a codebook already chosen
+	 * @param counts is the count of each value in the block
+	 * @param codings is the codebook for counts
+	 * @param stats holds the block's measurements so far
+	 * @return the encoded block
+	 */
+	private EncodedBlock encodeBlock(long[] counts, HuffCodebook codings, byte[] block, int length,
+			HuffStats stats) {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 2 + 64);
+		BitOutputStream out = new BitOutputStream(bytes);
+		writeBlockCodes(counts, codings, block, length, out, stats);
+		out.close();
+		return new EncodedBlock(length, (int) out.bitsWritten(), bytes.toByteArray(), stats);
+	}
+	
+	/**
+	 * Writes an encoded block with its length and bit count, and adds it
+	 * to index and its measurements to stats
+	 * @param encoded is the block
+	 * @param position is the byte offset in the file of out's position
+	 * @param index records where the encoded block is written
+	 * @param out
+	 * @param stats accumulates measurements of all blocks
+	 * @return the byte offset in the file just after the block
+	 */
+	private long writeEncodedBlock(EncodedBlock encoded, long position, HuffBlockIndex index,
+			BitOutputStream out, HuffStats stats) {
+		stats.add(encoded.myStats);
+		out.writeBits(BITS_PER_INT, encoded.myLength);
+		out.writeBits(BITS_PER_INT, encoded.myBits);
+		out.write(encoded.myBytes, 0, encoded.myBytes.length);
+		
+		long start = position + 2 * Integer.BYTES;
+		index.add(start, encoded.myBits, encoded.myLength);
+		return start + encoded.myBytes.length;
+	}
+	
+	/**
+	 * Writes one block: its length, tree header, and codes, or stored
+	 * @param block holds the bytes to compress
+	 * @param length is the number of bytes of block in use
+	 * @param out
+	 * @param stats accumulates measurements of the block
+	 */
+	void writeBlock(byte[] block, int length, BitOutputStream out, HuffStats stats) {
+		writeBlock(block, length, out, stats, null, 0);
+	}
+	
+	/**
+	 * Writes one block, stored as it is if its tree header and codes would
+	 * take more bits than its bytes
+	 * @param file holds the block's bytes, to be stored with transferTo,
+	 * or null to store them from block
+	 * @param position is the offset in file of the block
 	 */
-	private int[] readforCounts(BitInputStream in) {
+	private void writeBlock(byte[] block, int length, BitOutputStream out, HuffStats stats,
+			FileChannel file, long position) {
 		
-		int [] freqs = new int[ALPH_SIZE +1];
+		long start = System.nanoTime();
+		long[] counts = countBlock(block, length);
+		stats.myCountNanos += System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		HuffCodebook codings = cachedCodings(counts);
+		stats.myTreeNanos += System.nanoTime() - start;
+		
+		if (codedBits(counts, codings) < BITS_PER_WORD * (long) length) {
+			out.writeBits(BITS_PER_INT, length);
+			writeBlockCodes(counts, codings, block, length, out, stats);
+			return;
+		}
+		
+		start = System.nanoTime();
+		startStoredBlock(length, out);
+		if (file != null) {
+			out.transferFrom(file, position, length);
+		}
+		else {
+			out.write(block, 0, length);
+		}
+		stats.myEncodeNanos += System.nanoTime() - start;
+		stats.myBytesIn += length;
+		stats.myStoredBytes += length;
+	}
+	
+	/**
+	 * Writes the length word of a stored block, with STORED_BLOCK set,
+	 * and zero bits to a byte boundary; the block's bytes follow as they are
+	 * @param length is the number of bytes in the block
+	 * @param out
+	 */
+	static void startStoredBlock(int length, BitOutputStream out) {
+		out.writeBits(BITS_PER_INT, length | STORED_BLOCK);
+		out.alignToByte();
+	}
+	
+	/**
+	 * @return bits the tree header and codes of a block with counts would
+	 * take, the header being a 10-bit leaf per value and a bit per
+	 * internal node
+	 */
+	static long codedBits(long[] counts, HuffCodebook codings) {
+		
+		long bits = 0;
+		int leaves = 0;
+		for (int value = 0; value < counts.length; value++) {
+			bits += counts[value] * codings.myLengths[value];
+			if (codings.myLengths[value] > 0) leaves++;
+		}
+		return bits + (BITS_PER_WORD + 2) * leaves + Math.max(leaves - 1, 0);
+	}
+	
+	/**
+	 * Writes tree header and codes, ending with PSEUDO_EOF, for one block
+	 * @param block holds the bytes to compress
+	 * @param length is the number of bytes of block in use
+	 * @param out
+	 * @param stats accumulates measurements of the block
+	 */
+	private void writeBlockCodes(byte[] block, int length, BitOutputStream out, HuffStats stats) {
+		
+		long start = System.nanoTime();
+		long[] counts = countBlock(block, length);
+		stats.myCountNanos += System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		HuffCodebook codings = cachedCodings(counts);
+		stats.myTreeNanos += System.nanoTime() - start;
+		
+		writeBlockCodes(counts, codings, block, length, out, stats);
+	}
+	
+	/**
+	 * Writes tree header and codes for one block already counted
+	 * @param counts is the count of each value in the block
+	 * @param codings is the codebook for counts
+	 */
+	private void writeBlockCodes(long[] counts, HuffCodebook codings, byte[] block, int length,
+			BitOutputStream out, HuffStats stats) {
+		
+		long start = System.nanoTime();
+		writeTreeHeader(codings, out);
+		stats.myHeaderNanos += System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		writeCodes(codings, block, 0, length, out);
+		writeCode(codings, PSEUDO_EOF, out);
+		stats.myEncodeNanos += System.nanoTime() - start;
+		
+		addCodes(stats, counts, codings);
+		stats.myBytesIn += length;
+	}
+	
+	/**
+	 * Record in stats that each value was coded counts[value] times with
+	 * codings. If codings reaches myMaxCodeLength and the optimal code for
+	 * counts would go beyond it, the code was limited, and the bits it took
+	 * and the bits the unlimited code would have taken are recorded too.
+	 * @param stats accumulates measurements
+	 * @param counts is the count of each value, including PSEUDO_EOF
+	 * @param codings is the codebook the values were coded with
+	 */
+	private void addCodes(HuffStats stats, long[] counts, HuffCodebook codings) {
+		
+		stats.addCodes(counts, codings);
+		int depth = 0;
+		for (byte length : codings.myLengths) {
+			depth = Math.max(depth, length);
+		}
+		if (depth < myMaxCodeLength) return;
+		
+		byte[] optimal = HuffCodebook.optimalLengths(counts);
+		long limited = 0, unlimited = 0;
+		boolean deeper = false;
+		for (int value = 0; value < counts.length; value++) {
+			limited += counts[value] * codings.myLengths[value];
+			unlimited += counts[value] * optimal[value];
+			deeper |= optimal[value] > myMaxCodeLength;
+		}
+		if (deeper) {
+			stats.myLimitedCodeBits += limited;
+			stats.myUnlimitedCodeBits += unlimited;
+		}
+	}
+	
+	/**
+	 * Fill in the output size of a finished call
+	 * @param stats holds the measurements of the call
+	 * @param out has been closed
+	 * @return stats
+	 */
+	private HuffStats finishStats(HuffStats stats, BitOutputStream out) {
+		
+		stats.myBytesOut = (out.bitsWritten() + BITS_PER_WORD - 1) / BITS_PER_WORD;
+		return stats;
+	}
+	
+	/**
+	 * Determines frequencies of the first length bytes of block
+	 * @param block
+	 * @param length
+	 * @return int array of frequencies, including PSEUDO_EOF
+	 */
+	private long[] countBlock(byte[] block, int length) {
+		
+		HuffHistogram histogram = new HuffHistogram();
+		histogram.add(block, 0, length);
+		long [] freqs = histogram.counts();
 		freqs[PSEUDO_EOF] = 1;
 		
+		return freqs;
+	}
+	
+	/**
+	 * Determines frequencies, a chunk at a time. A file of at least
+	 * HuffHistogram.PARALLEL_THRESHOLD bytes read through map is counted
+	 * in parallel segments on the common ForkJoinPool instead.
+	 * @param in 
+	 * @return long array of frequencies, including PSEUDO_EOF
+	 */
+	private long[] readforCounts(BitInputStream in) {
+		
+		long [] freqs;
+		FileChannel file = in.mappedChannel();
+		try {
+			if (file != null && file.size() >= HuffHistogram.PARALLEL_THRESHOLD) {
+				freqs = HuffHistogram.count(file, ForkJoinPool.commonPool());
+				freqs[PSEUDO_EOF] = 1;
+				return freqs;
+			}
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+		
+		HuffHistogram histogram = new HuffHistogram();
+		byte[] chunk = new byte[CHUNK_SIZE];
 		while(true) {
-		   int value = in.readBits(BITS_PER_WORD);
-		   if (value == -1) break;
-		   else {
-			   freqs[value] += 1;
-		   }
+		   int length = in.read(chunk, 0, chunk.length);
+		   if (length == -1) break;
+		   histogram.add(chunk, 0, length);
 		}
 		
+		freqs = histogram.counts();
+		freqs[PSEUDO_EOF] = 1;
 		return freqs;
 			
 	}
 	
 	/**
-	 * PriorityQueue enables greedy algorithm
-	 * @param freqs
-	 * @return HuffMan Tree/Trie
+	 * Estimates frequencies from SAMPLE_SIZE byte samples spread evenly
+	 * over a mapped file, read without moving in's position, scaled to
+	 * the file size and at least 1 for every value
+	 * @param in
+	 * @param fraction is the part of the file to sample
+	 * @return long array of frequencies, including PSEUDO_EOF; exact
+	 * counts, as readforCounts gives, if in cannot be sampled
 	 */
-	private HuffNode makeTreeFromCounts(int[] freqs) {
+	private long[] readforSampleCounts(BitInputStream in, double fraction) {
 		
-		PriorityQueue<HuffNode> pq = new PriorityQueue<>();
+		FileChannel file = in.mappedChannel();
+		try {
+			long size = file == null ? 0 : file.size();
+			long stride = (long) Math.ceil(SAMPLE_SIZE / fraction);
+			if (file == null || size < 2 * stride) {
+				return readforCounts(in);
+			}
+			
+			HuffHistogram histogram = new HuffHistogram();
+			ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+			long sampled = 0;
+			for (long position = 0; position + SAMPLE_SIZE <= size; position += stride) {
+				sample.clear();
+				HuffBlockIndex.readFully(file, sample, position);
+				histogram.add(sample.array(), 0, SAMPLE_SIZE);
+				sampled += SAMPLE_SIZE;
+			}
+			
+			long[] freqs = histogram.counts();
+			double scale = (double) size / sampled;
+			for (int value = 0; value < ALPH_SIZE; value++) {
+				freqs[value] = Math.max(1, Math.round(freqs[value] * scale));
+			}
+			freqs[PSEUDO_EOF] = 1;
+			return freqs;
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+	
+	/**
+	 * Determines frequencies of each value after each previous value,
+	 * the first value counting as following 0
+	 * @param in
+	 * @return counts[previous][value], including one PSEUDO_EOF after
+	 * the last value
+	 */
+	private long[][] readforContextCounts(BitInputStream in) {
 		
-		if(myDebugLevel >= DEBUG_HIGH)
-			System.out.printf("pq created with %d nodes\n", pq.size());
+		long[][] counts = new long[CONTEXTS][ALPH_SIZE + 1];
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int previous = 0;
 		
-		for(int k = 0; k < freqs.length; k++) {
-			if (freqs[k] > 0) //only add nodes with non-zero weights to pq
-				pq.add(new HuffNode(k, freqs[k], null, null));
-			
+		int length = in.read(chunk, 0, chunk.length);
+		while (length != -1) {
+			for (int k = 0; k < length; k++) {
+				int value = chunk[k] & 0xff;
+				counts[previous][value]++;
+				previous = value;
+			}
+			length = in.read(chunk, 0, chunk.length);
 		}
+		counts[previous][PSEUDO_EOF] = 1;
 		
-		while (pq.size() > 1) {
-			
-			HuffNode left = pq.remove();
-			HuffNode right = pq.remove();
-			HuffNode t = new HuffNode(-1, left.myWeight + right.myWeight, left, right); 
-			pq.add(t);
+		return counts;
+	}
+	
+	/**
+	 * Groups contexts that can share a Huffman table. Every context that
+	 * occurs starts in its own cluster and the pair of clusters whose
+	 * merge saves the most estimated bits (see contextCost) is merged,
+	 * down to a single cluster. The clustering along the way with the
+	 * least estimated total, counting the context map, is the one used.
+	 * Contexts that never occur go in table 0.
+	 * @param counts is counts[context][value] from readforContextCounts
+	 * @return table number of each context, tables numbered from 0
+	 */
+	private int[] clusterContexts(long[][] counts) {
+		
+		long[][] clusters = new long[CONTEXTS][];
+		double[] costs = new double[CONTEXTS];
+		boolean[] occurs = new boolean[CONTEXTS];
+		int live = 0;
+		double total = 0;
+		for (int context = 0; context < CONTEXTS; context++) {
+			for (long count : counts[context]) {
+				if (count > 0) {
+					occurs[context] = true;
+					clusters[context] = counts[context].clone();
+					costs[context] = contextCost(clusters[context]);
+					total += costs[context];
+					live++;
+					break;
+				}
+			}
+		}
+		
+		// savings[a][b], a < b, is the estimated bits saved by merging a and b
+		double[][] savings = new double[CONTEXTS][CONTEXTS];
+		for (int a = 0; a < CONTEXTS; a++) {
+			for (int b = a + 1; b < CONTEXTS; b++) {
+				if (clusters[a] != null && clusters[b] != null) {
+					savings[a][b] = costs[a] + costs[b] - contextCost(merge(clusters[a], clusters[b]));
+				}
+			}
+		}
+		
+		// merges[k] is the pair merged at step k, b into a
+		int[][] merges = new int[CONTEXTS][2];
+		int steps = 0;
+		int bestSteps = 0;
+		double bestTotal = total + contextMapBits(live);
+		while (live > 1) {
+			int bestA = -1, bestB = -1;
+			double best = Double.NEGATIVE_INFINITY;
+			for (int a = 0; a < CONTEXTS; a++) {
+				if (clusters[a] == null) continue;
+				for (int b = a + 1; b < CONTEXTS; b++) {
+					if (clusters[b] != null && savings[a][b] > best) {
+						best = savings[a][b];
+						bestA = a;
+						bestB = b;
+					}
+				}
+			}
 			
+			clusters[bestA] = merge(clusters[bestA], clusters[bestB]);
+			costs[bestA] = contextCost(clusters[bestA]);
+			clusters[bestB] = null;
+			for (int c = 0; c < CONTEXTS; c++) {
+				if (c == bestA || clusters[c] == null) continue;
+				double saving = costs[bestA] + costs[c] - contextCost(merge(clusters[bestA], clusters[c]));
+				savings[Math.min(c, bestA)][Math.max(c, bestA)] = saving;
+			}
+			merges[steps][0] = bestA;
+			merges[steps][1] = bestB;
+			steps++;
+			live--;
+			total -= best;
+			if (total + contextMapBits(live) < bestTotal) {
+				bestTotal = total + contextMapBits(live);
+				bestSteps = steps;
+			}
 		}
 		
-		HuffNode root = pq.remove();
-		return root;
+		int[] owners = new int[CONTEXTS];
+		for (int context = 0; context < CONTEXTS; context++) {
+			owners[context] = context;
+		}
+		for (int step = 0; step < bestSteps; step++) {
+			for (int context = 0; context < CONTEXTS; context++) {
+				if (owners[context] == merges[step][1]) owners[context] = merges[step][0];
+			}
+		}
+		
+		int[] tableOf = new int[CONTEXTS];
+		Arrays.fill(tableOf, -1);
+		int tables = 0;
+		int[] contextMap = new int[CONTEXTS];
+		for (int context = 0; context < CONTEXTS; context++) {
+			if (!occurs[context]) continue;
+			if (tableOf[owners[context]] == -1) tableOf[owners[context]] = tables++;
+			contextMap[context] = tableOf[owners[context]];
+		}
+		return contextMap;
+	}
+	
+	/**
+	 * @return bits compressContext writes for the context map of tables
+	 */
+	private int contextMapBits(int tables) {
+		return CONTEXTS * (BITS_PER_INT - Integer.numberOfLeadingZeros(Math.max(tables, 1) - 1));
+	}
+	
+	/**
+	 * @return element-wise sum of two count arrays
+	 */
+	private long[] merge(long[] a, long[] b) {
+		long[] sum = new long[a.length];
+		for (int k = 0; k < a.length; k++) {
+			sum[k] = a[k] + b[k];
+		}
+		return sum;
 	}
 	
 	/**
-	 * Return String array of bit-stream codes
-	 * @param root is HuffNode tree object
-	 * @return
+	 * Estimates the bits a table for counts costs: its entropy-coded data,
+	 * or one bit per value when only one value occurs (see
+	 * makeContextCodings), plus its canonical header at about 2 bits per
+	 * present value, a literal for one following absent values, and
+	 * 2 + ZERO_RUN_BITS per run of absent values
+	 * @param counts is the count of each value
+	 * @return estimated bits for header and data
 	 */
-	private String [] makeCodingsFromTree(HuffNode root) {
+	private double contextCost(long[] counts) {
 		
-		String[] codes = new String[ALPH_SIZE +1];
-		codingHelper(root, "", codes);
+		long total = 0;
+		int present = 0;
+		double header = LENGTH_WIDTH_BITS;
+		double sum = 0;
+		int run = 0;
+		for (long count : counts) {
+			if (count > 0) {
+				total += count;
+				present++;
+				sum += count * Math.log(count);
+				header += run > 0 ? 3 + LENGTH_WIDTH_BITS : 2;
+				run = 0;
+			}
+			else {
+				if (run % MAX_ZERO_RUN == 0) header += 2 + ZERO_RUN_BITS;
+				run++;
+			}
+		}
+		if (present < 2) {
+			return header + total;
+		}
+		return header + (total * Math.log(total) - sum) / Math.log(2);
+	}
+	
+	/**
+	 * Canonical codebook for one context table. A table whose contexts
+	 * saw only one value still needs a 1-bit code, so a second value gets
+	 * a count of 1 to pair with it.
+	 * @param counts is the count of each value in the table's contexts
+	 * @return canonical codebook with codes for every value counted
+	 */
+	private HuffCodebook makeContextCodings(long[] counts) {
 		
-        return codes;
+		int present = 0;
+		for (long count : counts) {
+			if (count > 0) present++;
+		}
+		if (present == 1) {
+			counts = counts.clone();
+			counts[counts[PSEUDO_EOF] == 0 ? PSEUDO_EOF : 0] = 1;
+		}
+		return makeCodingsFromCounts(counts);
 	}
 	
 	/**
-	 * Reads tree, creates encoding pathway determined by 0s (left) and 1s (right)
-	 * @param root is the HuffNode tree object
-	 * @param path is the path created from the tree
-	 * @param codes is a string array of the codes
+	 * Codebook for counts from myCache, if there is one, or else built
+	 * @param counts
+	 * @return canonical codebook indexed by value
 	 */
-	private void codingHelper(HuffNode root, String path, String[] codes) {
-
-		if(root.myLeft == null && root.myRight == null) {
-			codes[root.myValue] = path;
-			return;
+	private HuffCodebook cachedCodings(long[] counts) {
+		if (myCache == null) {
+			return makeCodingsFromCounts(counts);
 		}
+		return myCache.codings(counts, myMaxCodeLength, this::makeCodingsFromCounts);
+	}
+	
+	/**
+	 * Canonical codebook with optimal code lengths for freqs, computed in
+	 * place over a sorted array (see HuffCodebook.optimalLengths) rather
+	 * than by merging HuffNode objects in a priority queue. Codes longer
+	 * than myMaxCodeLength are replaced by the best lengths within it.
+	 * @param freqs
+	 * @return canonical codebook indexed by value
+	 */
+	private HuffCodebook makeCodingsFromCounts(long[] freqs) {
 		
-        codingHelper(root.myLeft, path + "0", codes); // "0" added to path when left
-    	codingHelper(root.myRight, path + "1", codes); // "1" added to path when right
+		byte[] lengths = HuffCodebook.optimalLengths(freqs);
+		int depth = 0;
+		for (byte length : lengths) {
+			depth = Math.max(depth, length);
+		}
 		
+		if (depth > myMaxCodeLength) {
+			lengths = HuffCodebook.limitedLengths(freqs, myMaxCodeLength);
+		}
+		return HuffCodebook.canonical(lengths);
 	}
 	
-    /**
-     * If node is internal node, writes single bit of zero
-     * If node is leaf, writes a single bit of 1 followed by 9 bits of value stored in the leaf
-     * @param root is the HuffNode tree object
-     * @param out is the codes written 
-     */
-	private void writeTreeHeader(HuffNode root, BitOutputStream out) {
+	/**
+	 * Writes the tree whose paths are the codes of a canonical codebook,
+	 * in preorder: a single bit of zero for an internal node, a single bit
+	 * of 1 followed by 9 bits of value for a leaf. Canonical codes in
+	 * order of length and then value are in left-to-right leaf order, so
+	 * the internal nodes before each leaf are the ones below where its
+	 * path leaves the previous leaf's, and no tree is built. A codebook
+	 * with no codes is an empty input, whose tree is PSEUDO_EOF alone.
+	 * @param codings is a canonical codebook
+	 * @param out is the codes written 
+	 */
+	static void writeTreeHeader(HuffCodebook codings, BitOutputStream out) {
 		
-		if(root.myLeft == null && root.myRight == null) {
-			
+		byte[] lengths = codings.myLengths;
+		int[] starts = new int[HuffCodebook.MAX_CODE_LENGTH + 2];
+		int leaves = 0;
+		for (byte length : lengths) {
+			if (length > 0) {
+				starts[length + 1]++;
+				leaves++;
+			}
+		}
+		if (leaves == 0) {
 			out.writeBits(1, 1);
-			out.writeBits(BITS_PER_WORD + 1 , root.myValue);
-			
+			out.writeBits(BITS_PER_WORD + 1, PSEUDO_EOF);
+			return;
 		}
 		
-		else {
+		// counting sort of values by length, then value: code order
+		for (int length = 1; length < starts.length; length++) {
+			starts[length] += starts[length - 1];
+		}
+		int[] order = new int[leaves];
+		for (int value = 0; value < lengths.length; value++) {
+			if (lengths[value] > 0) order[starts[lengths[value]]++] = value;
+		}
+		
+		long previous = 0;
+		for (int k = 0; k < leaves; k++) {
+			int value = order[k];
+			int length = lengths[value];
 			
-			out.writeBits(1, 0);
-			writeTreeHeader(root.myLeft, out);
-			writeTreeHeader(root.myRight, out);
+			// code left-aligned in 64 bits, so codes of any length compare
+			long code = Integer.toUnsignedLong(codings.myCodes[value]) << (64 - length);
+			int internal = k == 0 ? length : length - Long.numberOfLeadingZeros(previous ^ code) - 1;
+			while (internal > 0) {
+				int bits = Math.min(internal, BITS_PER_INT);
+				out.writeBits(bits, 0);
+				internal -= bits;
+			}
+			out.writeBits(1, 1);
+			out.writeBits(BITS_PER_WORD + 1, value);
+			previous = code;
+		}
+	}
+	
+	/**
+	 * Writes the code length of every value, ALPH_SIZE + 1 in all. First
+	 * LENGTH_WIDTH_BITS bits give the width w of a literal length, then
+	 * lengths in value order, each one as
+	 * <ul>
+	 * <li>0 if equal to the previous non-zero length
+	 * <li>10 and ZERO_RUN_BITS bits of count - 1 for a run of zeros
+	 * <li>110 and a sign bit if one more (0) or less (1) than the previous
+	 * non-zero length
+	 * <li>111 and a w-bit literal otherwise
+	 * </ul>
+	 * Unused values come in long runs and used values' lengths change
+	 * slowly, so this is much smaller than the tree header on most inputs.
+	 * @param codings is a canonical codebook
+	 * @param out
+	 */
+	static void writeCanonicalHeader(HuffCodebook codings, BitOutputStream out) {
+		
+		byte[] lengths = codings.myLengths;
+		int max = 1;
+		for (byte length : lengths) {
+			max = Math.max(max, length);
+		}
+		int width = BITS_PER_INT - Integer.numberOfLeadingZeros(max);
+		out.writeBits(LENGTH_WIDTH_BITS, width);
+		
+		int previous = 0;
+		int k = 0;
+		while (k < lengths.length) {
+			int length = lengths[k];
+			if (length == 0) {
+				int run = 1;
+				while (k + run < lengths.length && lengths[k + run] == 0 && run < MAX_ZERO_RUN) {
+					run++;
+				}
+				out.writeBits(2, 0b10);
+				out.writeBits(ZERO_RUN_BITS, run - 1);
+				k += run;
+				continue;
+			}
 			
+			if (length == previous) {
+				out.writeBits(1, 0);
+			}
+			else if (Math.abs(length - previous) == 1 && previous != 0) {
+				out.writeBits(3, 0b110);
+				out.writeBits(1, length < previous ? 1 : 0);
+			}
+			else {
+				out.writeBits(3, 0b111);
+				out.writeBits(width, length);
+			}
+			previous = length;
+			k++;
 		}
 	}
 	
 	/**
 	 * Reads input and uses codings to encode bit-sequence for characters in input
-	 * @param codings, String array containing codes for each character
+	 * @param codings, codebook containing code and length for each character
 	 * @param in
 	 * @param out
+	 * @param histogram counts the bytes as they are encoded, or is null
 	 */
-	private void writeCompressedBits(String [] codings, BitInputStream in, BitOutputStream out) {
+	private void writeCompressedBits(HuffCodebook codings, BitInputStream in, BitOutputStream out,
+			HuffHistogram histogram) {
+		
+		byte[] chunk = new byte[CHUNK_SIZE];
 		
 		in.reset();
-		int value = in.readBits(BITS_PER_WORD);
+		int length = in.read(chunk, 0, chunk.length);
 		
-		while(value != -1) {
+		while(length != -1) {
 			
-			String code = codings[value];
-			out.writeBits(code.length(), Integer.parseInt(code, 2));	
-			value = in.readBits(BITS_PER_WORD);
+			if (histogram != null) {
+				histogram.add(chunk, 0, length);
+			}
+			writeCodes(codings, chunk, 0, length, out);
+			length = in.read(chunk, 0, chunk.length);
 			
 		}
 		
-		String last = codings[PSEUDO_EOF];
-		out.writeBits(last.length(), Integer.parseInt(last, 2));
+		writeCode(codings, PSEUDO_EOF, out);
 				
 	}
 	
+	/**
+	 * Encodes bytes of data. Codes are packed into a 64-bit accumulator and
+	 * handed to out 32 bits at a time, so the loop does no allocation or
+	 * parsing per symbol. The accumulator is drained before returning.
+	 * Codes are widened unsigned, since a code of MAX_CODE_LENGTH bits
+	 * may have its top bit set.
+	 * @param codings, codebook containing code and length for each character
+	 * @param data holds the bytes to encode
+	 * @param offset is the index of the first byte to encode
+	 * @param length is the number of bytes to encode
+	 * @param out
+	 */
+	static void writeCodes(HuffCodebook codings, byte[] data, int offset, int length, BitOutputStream out) {
+		
+		int[] codes = codings.myCodes;
+		byte[] lengths = codings.myLengths;
+		long acc = 0;
+		int count = 0;
+		
+		for (int k = offset; k < offset + length; k++) {
+			int value = data[k] & 0xff;
+			acc = (acc << lengths[value]) | Integer.toUnsignedLong(codes[value]);
+			count += lengths[value];
+			if (count >= BITS_PER_INT) {
+				count -= BITS_PER_INT;
+				out.writeBits(BITS_PER_INT, (int) (acc >>> count));
+			}
+		}
+		
+		if (count > 0) {
+			out.writeBits(count, (int) acc);
+		}
+	}
+	
+	/**
+	 * Encodes bytes of data like writeCodes, codes widened unsigned the
+	 * same way, but coding each byte with the table of the context set by
+	 * the byte before it
+	 * @param codings is the codebook of each table
+	 * @param contextMap is the table number of each context
+	 * @param previous is the byte before data[0], 0 at the start of a file
+	 * @param data holds the bytes to encode
+	 * @param length is the number of bytes to encode
+	 * @param out
+	 */
+	private void writeContextCodes(HuffCodebook[] codings, int[] contextMap, int previous,
+			byte[] data, int length, BitOutputStream out) {
+		
+		long acc = 0;
+		int count = 0;
+		
+		for (int k = 0; k < length; k++) {
+			int value = data[k] & 0xff;
+			HuffCodebook table = codings[contextMap[previous]];
+			int codeLength = table.myLengths[value];
+			acc = (acc << codeLength) | Integer.toUnsignedLong(table.myCodes[value]);
+			count += codeLength;
+			if (count >= BITS_PER_INT) {
+				count -= BITS_PER_INT;
+				out.writeBits(BITS_PER_INT, (int) (acc >>> count));
+			}
+			previous = value;
+		}
+		
+		if (count > 0) {
+			out.writeBits(count, (int) acc);
+		}
+	}
+	
+	/**
+	 * Writes the code for a single value, e.g., PSEUDO_EOF
+	 * @param codings, codebook containing code and length for each character
+	 * @param value
+	 * @param out
+	 */
+	static void writeCode(HuffCodebook codings, int value, BitOutputStream out) {
+		
+		if (codings.myLengths[value] > 0) {
+			out.writeBits(codings.myLengths[value], codings.myCodes[value]);
+		}
+	}
+	
 	/**
 	 * Decompresses a file. Output file must be identical bit-by-bit to the
-	 * original.
+	 * original. in is read once, so its mark is discarded and a stream over
+	 * a large file does not retain what it has read.
 	 *
 	 * @param in
 	 *            Buffered bit stream of the file to be decompressed.
 	 * @param out
 	 *            Buffered bit stream writing to the output file.
+	 * @return time spent reading headers and decoding, and sizes
 	 */
-	public void decompress(BitInputStream in, BitOutputStream out){
+	public HuffStats decompress(BitInputStream in, BitOutputStream out){
 		
+		HuffStats stats = new HuffStats();
+		in.discardMark();
 		int bit = in.readBits(BITS_PER_INT);
 		
-		if(bit != HUFF_TREE) {
+		if (bit == HUFF_TREE) {
+			long start = System.nanoTime();
+			HuffDecoder decoder = readTreeHeader(in);
+			stats.myHeaderNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			decoder.decode(in, out);
+			stats.myDecodeNanos = System.nanoTime() - start;
+		}
+		else if (bit == HUFF_BLOCKS) {
+			readCompressedBlocks(in, out, ourTreeReaders.get(), myCache, new byte[CHUNK_SIZE], stats);
+		}
+		else if (bit == HUFF_PARALLEL) {
+			readParallelBlocks(in, out, stats);
+		}
+		else if (bit == HUFF_CANONICAL) {
+			long start = System.nanoTime();
+			HuffCodebook codings = readCanonicalHeader(in);
+			HuffDecoder decoder = myCache == null ? new HuffDecoder(codings)
+					: myCache.decoder(codings.myCodes, codings.myLengths);
+			stats.myHeaderNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			decoder.decode(in, out);
+			stats.myDecodeNanos = System.nanoTime() - start;
+		}
+		else if (bit == HUFF_ADAPTIVE) {
+			long start = System.nanoTime();
+			readAdaptiveBits(in, out);
+			stats.myDecodeNanos = System.nanoTime() - start;
+		}
+		else if (bit == HUFF_CONTEXT) {
+			readContextBits(in, out, stats);
+		}
+		else if (bit == HUFF_DICTIONARY) {
+			long start = System.nanoTime();
+			int id = in.readBits(BITS_PER_INT);
+			if (id == -1) {
+				throw new HuffException("bad input, no dictionary id");
+			}
+			HuffDictionary dictionary = myDictionaries.get(id);
+			if (dictionary == null) {
+				throw new HuffException("dictionary " + id + " is not loaded");
+			}
+			stats.myHeaderNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			dictionary.myDecoder.decode(in, out);
+			stats.myDecodeNanos = System.nanoTime() - start;
+		}
+		else {
 			throw new HuffException("illegal header starts with" + bit);
 		}
 		
-		HuffNode root = readTreeHeader(in);
-		readCompressedBits(root, in, out);
 		out.close();
+		stats.myBytesIn = in.bitsRead() / BITS_PER_WORD;
+		return finishStats(stats, out);
+	}
+	
+	/**
+	 * Reads blocks written by compressBlocks, or HuffCodec, until the 0
+	 * length block, checking that each block decodes to its recorded length
+	 * @param in is positioned just after the HUFF_BLOCKS number
+	 * @param out
+	 * @param reader reads each coded block's tree header
+	 * @param cache supplies decoders for headers seen before, or null
+	 * @param chunk holds stored bytes on their way from in to out
+	 * @param stats accumulates time spent reading headers and decoding
+	 */
+	static void readCompressedBlocks(BitInputStream in, BitOutputStream out, HuffTreeReader reader,
+			HuffCodebookCache cache, byte[] chunk, HuffStats stats) {
+		
+		while (true) {
+			int length = in.readBits(BITS_PER_INT);
+			if (length == -1) {
+				throw new HuffException("bad input, no final block");
+			}
+			if (length == 0) break;
+			if ((length & STORED_BLOCK) != 0) {
+				long start = System.nanoTime();
+				readStoredBlock(length & ~STORED_BLOCK, in, out, chunk);
+				stats.myDecodeNanos += System.nanoTime() - start;
+				continue;
+			}
+			
+			long start = System.nanoTime();
+			HuffDecoder decoder = cache == null ? reader.read(in) : reader.read(in, cache);
+			stats.myHeaderNanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			long count = decoder.decode(in, out);
+			stats.myDecodeNanos += System.nanoTime() - start;
+			if (count != length) {
+				throw new HuffException("bad input, block of " + length + " decoded to " + count);
+			}
+		}
 	}
 	
 	/**
-	 * Reads tree, which was stored using recursion
+	 * Copies the bytes of a stored block from in to out
+	 * @param length is the block length, without STORED_BLOCK
+	 * @param in is positioned just after the block length
+	 * @param out
+	 * @param chunk holds the bytes on their way, of any size
+	 */
+	private static void readStoredBlock(int length, BitInputStream in, BitOutputStream out, byte[] chunk) {
+		
+		if (length == 0 || length > MAX_BLOCK_SIZE) {
+			throw new HuffException("bad input, stored block of " + length);
+		}
+		in.alignToByte();
+		while (length > 0) {
+			int count = in.read(chunk, 0, Math.min(length, chunk.length));
+			if (count == -1) {
+				throw new HuffException("bad input, stored block ends early");
+			}
+			out.write(chunk, 0, count);
+			length -= count;
+		}
+	}
+	
+	/**
+	 * Decompresses a file using the common ForkJoinPool.
+	 * @see #decompressParallel(File, File, ExecutorService)
+	 */
+	public void decompressParallel(File in, File out) {
+		decompressParallel(in, out, ForkJoinPool.commonPool());
+	}
+	
+	/**
+	 * Decompresses a file written by compressParallel, decoding its blocks
+	 * concurrently. The HuffBlockIndex trailer gives each block's place in
+	 * both files, so out is sized up front and every task reads its own
+	 * encoded block and writes its own region of out. Files in any other
+	 * format, or without an index, are decompressed serially.
+	 *
 	 * @param in
+	 *            the file to be decompressed
+	 * @param out
+	 *            the output file, overwritten
+	 * @param pool
+	 *            runs the per-block tasks
 	 */
-	private HuffNode readTreeHeader(BitInputStream in) {
-		int bit = in.readBits(1);
-        if (bit == -1) {
-            throw new HuffException("bad input, no PSEUDO_EOF");
-        }
-        if (bit == 0) {
-     	    HuffNode left = readTreeHeader(in);
-     	    HuffNode right = readTreeHeader(in);
-     	    return new HuffNode(0,1,left,right);
-     	}
-     	else {
-     	    int value = in.readBits(BITS_PER_WORD+1);
-     	    return new HuffNode(value,0,null,null);
-     	}    
-	}
-	
-	/**
-	 * Read bits from BitInputStream. Traverses tree from root, going left or right depending on whether a 0 or 1 is read.
-	 * @param root is the HuffNode tree object
+	public void decompressParallel(File in, File out, ExecutorService pool) {
+		
+		try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+			HuffBlockIndex index = HuffBlockIndex.read(input);
+			if (index == null) {
+				BitInputStream bits = BitInputStream.map(in);
+				try {
+					decompress(bits, new BitOutputStream(out));
+				}
+				finally {
+					bits.close();
+				}
+				return;
+			}
+			
+			try (RandomAccessFile file = new RandomAccessFile(out, "rw")) {
+				file.setLength(index.totalLength());
+				FileChannel output = file.getChannel();
+				List<Future<Object>> tasks = new ArrayList<>();
+				try {
+					for (int k = 0; k < index.size(); k++) {
+						int block = k;
+						tasks.add(pool.submit(() -> decodeIndexedBlock(input, output, index, block)));
+					}
+					for (Future<Object> task : tasks) {
+						Futures.await(task);
+					}
+				}
+				catch (RuntimeException e) {
+					for (Future<Object> task : tasks) {
+						task.cancel(true);
+					}
+					throw e;
+				}
+			}
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+	
+	/**
+	 * Decodes one block of an indexed file into its region of the output
+	 * @param input is the compressed file
+	 * @param output is the uncompressed file, already sized
+	 * @param index locates the block in both files
+	 * @param block is the number of the block to decode
+	 * @return null, so this can be submitted as a Callable
+	 */
+	private Object decodeIndexedBlock(FileChannel input, FileChannel output, HuffBlockIndex index, int block)
+			throws IOException {
+		
+		byte[] encoded = new byte[(index.bits(block) + BITS_PER_WORD - 1) / BITS_PER_WORD];
+		HuffBlockIndex.readFully(input, ByteBuffer.wrap(encoded), index.offset(block));
+		
+		byte[] decoded = new byte[index.length(block)];
+		BitInputStream in = new BitInputStream(new ByteArrayInputStream(encoded));
+		int count = readTreeHeader(in).decode(in, decoded, 0, decoded.length);
+		if (count != decoded.length) {
+			throw new HuffException("bad input, block of " + decoded.length + " decoded to " + count);
+		}
+		
+		HuffBlockIndex.writeFully(output, ByteBuffer.wrap(decoded), index.start(block));
+		return null;
+	}
+	
+	/**
+	 * Decodes a stream written by compressAdaptive until PSEUDO_EOF,
+	 * flushing complete output bytes whenever in has nothing more ready
+	 * @param in is positioned just after the HUFF_ADAPTIVE number
+	 * @param out
+	 */
+	private void readAdaptiveBits(BitInputStream in, BitOutputStream out) {
+		
+		HuffAdaptive coder = new HuffAdaptive();
+		while (true) {
+			if (in.available() == 0) {
+				out.flushBytes();
+			}
+			int value = coder.decode(in);
+			if (value == PSEUDO_EOF) break;
+			out.writeBits(BITS_PER_WORD, value);
+		}
+	}
+	
+	/**
+	 * Reads the context map and tables written by compressContext, then
+	 * decodes each value with the table of the value before it
+	 * @param in is positioned just after the HUFF_CONTEXT number
+	 * @param out
+	 * @param stats records time spent reading headers and decoding
+	 */
+	private void readContextBits(BitInputStream in, BitOutputStream out, HuffStats stats) {
+		
+		long start = System.nanoTime();
+		int tables = in.readBits(BITS_PER_WORD) + 1;
+		if (tables == 0) {
+			throw new HuffException("bad input, no context tables");
+		}
+		int width = BITS_PER_INT - Integer.numberOfLeadingZeros(tables - 1);
+		int[] contextMap = new int[CONTEXTS];
+		for (int context = 0; context < CONTEXTS && width > 0; context++) {
+			contextMap[context] = in.readBits(width);
+			if (contextMap[context] < 0 || contextMap[context] >= tables) {
+				throw new HuffException("bad input, context " + context + " has table " + contextMap[context]);
+			}
+		}
+		
+		HuffDecoder[] decoders = new HuffDecoder[tables];
+		for (int table = 0; table < tables; table++) {
+			HuffCodebook codings = readCanonicalHeader(in);
+			int maxLength = 0;
+			for (byte length : codings.myLengths) {
+				maxLength = Math.max(maxLength, length);
+			}
+			if (maxLength == 0) {
+				throw new HuffException("bad input, empty context table " + table);
+			}
+			decoders[table] = new HuffDecoder(codings);
+		}
+		stats.myHeaderNanos = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		int previous = 0;
+		while (true) {
+			int value = decoders[contextMap[previous]].next(in);
+			if (value == PSEUDO_EOF) break;
+			out.writeBits(BITS_PER_WORD, value);
+			previous = value;
+		}
+		stats.myDecodeNanos = System.nanoTime() - start;
+	}
+	
+	/**
+	 * Decompresses only bytes [offset, offset + length) of the original
+	 * file. For a file written by compressParallel every block starts on a
+	 * byte boundary with its own tree, so each block is a restart point
+	 * every blockSize uncompressed bytes; the HuffBlockIndex trailer maps
+	 * offset to the first block covering it, and only the covering blocks
+	 * are read and decoded. Files without an index are decoded from the
+	 * start, keeping only the requested bytes.
+	 *
 	 * @param in
+	 *            the file to be decompressed
+	 * @param offset
+	 *            offset in the uncompressed output of the first byte wanted
+	 * @param length
+	 *            number of bytes wanted
+	 * @return the requested bytes
+	 * @throws HuffException if the range extends past the end of the output
+	 */
+	public byte[] decompressRange(File in, long offset, int length) {
+		
+		if (offset < 0 || length < 0) {
+			throw new HuffException("bad range " + offset + "+" + length);
+		}
+		
+		HuffBlockIndex index;
+		try (FileChannel input = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+			index = HuffBlockIndex.read(input);
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+		
+		byte[] range = new byte[length];
+		if (index == null) {
+			RangeOutputStream kept = new RangeOutputStream(range, offset);
+			try (BitInputStream bits = BitInputStream.map(in)) {
+				decompress(bits, new BitOutputStream(kept));
+			}
+			if (kept.myPosition < offset + length) {
+				throw new HuffException("range " + offset + "+" + length + " ends past " + kept.myPosition);
+			}
+			return range;
+		}
+		
+		if (offset + length > index.totalLength()) {
+			throw new HuffException("range " + offset + "+" + length + " ends past " + index.totalLength());
+		}
+		
+		try (BitInputStream bits = BitInputStream.map(in)) {
+			byte[] decoded = new byte[0];
+			long end = offset + length;
+			for (int block = index.blockAt(offset); block < index.size() && index.start(block) < end; block++) {
+				if (decoded.length < index.length(block)) {
+					decoded = new byte[index.length(block)];
+				}
+				bits.seek(index.offset(block));
+				int count = readTreeHeader(bits).decode(bits, decoded, 0, index.length(block));
+				if (count != index.length(block)) {
+					throw new HuffException("bad input, block of " + index.length(block) + " decoded to " + count);
+				}
+			
+				long from = Math.max(offset, index.start(block));
+				long to = Math.min(end, index.start(block) + count);
+				System.arraycopy(decoded, (int) (from - index.start(block)), range, (int) (from - offset), (int) (to - from));
+			}
+		}
+		return range;
+	}
+	
+	/**
+	 * Output that keeps only the bytes in one range of what is written.
+	 * Plain old Java object.
+	 */
+	private static class RangeOutputStream extends OutputStream {
+		final byte[] myRange;
+		final long myOffset;
+		long myPosition;
+		
+		RangeOutputStream(byte[] range, long offset) {
+			myRange = range;
+			myOffset = offset;
+		}
+		
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {
+			long from = Math.max(myOffset, myPosition);
+			long to = Math.min(myOffset + myRange.length, myPosition + len);
+			if (from < to) {
+				System.arraycopy(b, off + (int) (from - myPosition), myRange, (int) (from - myOffset), (int) (to - from));
+			}
+			myPosition += len;
+		}
+	}
+	
+	/**
+	 * Reads blocks written by compressParallel, one at a time
+	 * @param in is positioned just after the HUFF_PARALLEL number
 	 * @param out
-	 * @return HuffNode representing new encoding
-	 */
-	private HuffNode readCompressedBits(HuffNode root, BitInputStream in, BitOutputStream out) {
-		
-		HuffNode current = root; 
-		   while (true) {
-		       int bit = in.readBits(1);
-		       if (bit == -1) {
-		           throw new HuffException("bad input, no PSEUDO_EOF");
-		       }
-		       else { 
-		           if (bit == 0) current = current.myLeft;
-		           else current = current.myRight;
-
-		           if (current.myLeft == null && current.myRight == null) {
-		               if (current.myValue == PSEUDO_EOF) 
-		                   break;   // out of loop
-		               else {
-		            	   out.writeBits(BITS_PER_WORD, current.myValue);
-		                   current = root; // start back after leaf
-		               }
-		           }
-		       }
-		   }
-		   return root;
-	}
-}
\ No newline at end of file
+	 * @param stats accumulates time spent reading headers and decoding
+	 */
+	private void readParallelBlocks(BitInputStream in, BitOutputStream out, HuffStats stats) {
+		
+		int blockSize = in.readBits(BITS_PER_INT);
+		if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+			throw new HuffException("bad input, block size " + blockSize);
+		}
+		
+		while (true) {
+			int length = in.readBits(BITS_PER_INT);
+			if (length == -1) {
+				throw new HuffException("bad input, no final block");
+			}
+			if (length == 0) break;
+			
+			int bits = in.readBits(BITS_PER_INT);
+			byte[] encoded = new byte[(bits + BITS_PER_WORD - 1) / BITS_PER_WORD];
+			if (bits < 0 || length > blockSize
+					|| in.read(encoded, 0, encoded.length) != encoded.length) {
+				throw new HuffException("bad input, truncated block");
+			}
+			decodeBlock(encoded, length, out, stats);
+			stats.myPeakBufferBytes = Math.max(stats.myPeakBufferBytes, encoded.length);
+		}
+	}
+	
+	/**
+	 * Decodes one block encoded by encodeBlock
+	 * @param encoded holds the tree header and codes of the block
+	 * @param length is the number of values the block must decode to
+	 * @param out
+	 * @param stats accumulates time spent reading headers and decoding
+	 */
+	private void decodeBlock(byte[] encoded, int length, BitOutputStream out, HuffStats stats) {
+		
+		BitInputStream in = new BitInputStream(new ByteArrayInputStream(encoded));
+		long start = System.nanoTime();
+		HuffDecoder decoder = readTreeHeader(in);
+		stats.myHeaderNanos += System.nanoTime() - start;
+		start = System.nanoTime();
+		long count = decoder.decode(in, out);
+		stats.myDecodeNanos += System.nanoTime() - start;
+		if (count != length) {
+			throw new HuffException("bad input, block of " + length + " decoded to " + count);
+		}
+	}
+	
+	/**
+	 * Reads code lengths written by writeCanonicalHeader
+	 * @param in
+	 * @return canonical codebook for the lengths read
+	 */
+	static HuffCodebook readCanonicalHeader(BitInputStream in) {
+		
+		int width = in.readBits(LENGTH_WIDTH_BITS);
+		if (width < 1 || width > 6) {
+			throw new HuffException("bad input, code length width " + width);
+		}
+		
+		byte[] lengths = new byte[ALPH_SIZE + 1];
+		int previous = 0;
+		int k = 0;
+		while (k < lengths.length) {
+			int length;
+			if (in.readBits(1) == 0) {
+				length = previous;
+			}
+			else if (in.readBits(1) == 0) {
+				int run = in.readBits(ZERO_RUN_BITS) + 1;
+				if (run == 0 || k + run > lengths.length) {
+					throw new HuffException("bad input, bad run of code lengths");
+				}
+				k += run;
+				continue;
+			}
+			else if (in.readBits(1) == 0) {
+				int sign = in.readBits(1);
+				length = sign == 1 ? previous - 1 : previous + 1;
+				if (sign == -1 || previous == 0) {
+					length = 0;
+				}
+			}
+			else {
+				length = in.readBits(width);
+			}
+			
+			if (length <= 0) {
+				throw new HuffException("bad input, bad code lengths");
+			}
+			lengths[k++] = (byte) length;
+			previous = length;
+		}
+		
+		try {
+			return HuffCodebook.canonical(lengths);
+		}
+		catch (HuffException e) {
+			throw new HuffException("bad input, " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Reads tree header written by writeTreeHeader into this thread's
+	 * HuffTreeReader, with no recursion and no HuffNode objects. With a
+	 * cache, the decoder for codes seen before is not rebuilt.
+	 * @param in
+	 * @return decoder for the codes read, valid until this thread reads
+	 * another tree header
+	 */
+	private HuffDecoder readTreeHeader(BitInputStream in) {
+		HuffTreeReader reader = ourTreeReaders.get();
+		return myCache == null ? reader.read(in) : reader.read(in, myCache);
+	}
+}
@@ -0,0 +1,167 @@
+import java.util.*;
+
+/**
+ * Measurements of one compress or decompress call, returned by the
+ * HuffProcessor method that made it. Collecting them costs a few
+ * System.nanoTime calls per phase and a pass over ALPH_SIZE + 1 counts
+ * per tree, so it is always on.
+ * <P>
+ * Times are in nanoseconds and summed over blocks; blocks encoded
+ * concurrently add their time on every thread, so phase times can total
+ * more than the elapsed time. Symbol counts, the code-length histogram
+ * and code bits are filled in by compressors that build static codes;
+ * decompression fills in times and byte counts only. myExactCodeBits,
+ * the code bits the exact tree would take, is filled in only by
+ * compressSampled, whose tree is made from a sample. myStoredBytes counts
+ * input that compressBlocks stored as it was, which is not in the symbol
+ * counts. myTables is the number of code tables compressContext
+ * clustered its contexts into. myPeakBufferBytes includes the input a
+ * two-pass compressor kept in memory to read it again, which is none
+ * for a stream made by BitInputStream.map. For code tables whose
+ * optimal codes were longer than the processor's maximum code length,
+ * myLimitedCodeBits is the code bits the length-limited codes took and
+ * myUnlimitedCodeBits what the optimal codes would have taken, so their
+ * difference is the cost of limiting; both are 0 if nothing was limited.
+ * <P>
+ * A plain old Java object like HuffCodebook, no getters; toMap gives
+ * every measurement by name for export.
+ */
+
+public class HuffStats {
+
+	public long myCountNanos, myTreeNanos, myHeaderNanos, myEncodeNanos, myDecodeNanos;
+	public long myBytesIn, myBytesOut;
+	public long myPeakBufferBytes;
+	public long mySymbols, myCodeBits, myExactCodeBits;
+	public long myStoredBytes;
+	public long myTables;
+	public long myLimitedCodeBits, myUnlimitedCodeBits;
+	public final long[] myCounts = new long[HuffProcessor.ALPH_SIZE + 1];
+	public final long[] myLengthHistogram = new long[HuffCodebook.MAX_CODE_LENGTH + 1];
+
+	/**
+	 * Record that each value was coded counts[value] times with the code
+	 * codings gives it
+	 * @param counts is the count of each value, including PSEUDO_EOF
+	 * @param codings is the codebook the values were coded with
+	 */
+	public void addCodes(long[] counts, HuffCodebook codings) {
+		for (int value = 0; value < counts.length; value++) {
+			int length = codings.myLengths[value];
+			myCounts[value] += counts[value];
+			myLengthHistogram[length] += counts[value];
+			mySymbols += counts[value];
+			myCodeBits += counts[value] * length;
+		}
+	}
+
+	/**
+	 * Add other's measurements to these, e.g., for another block
+	 * @param other holds the measurements to add
+	 */
+	public void add(HuffStats other) {
+		myCountNanos += other.myCountNanos;
+		myTreeNanos += other.myTreeNanos;
+		myHeaderNanos += other.myHeaderNanos;
+		myEncodeNanos += other.myEncodeNanos;
+		myDecodeNanos += other.myDecodeNanos;
+		myBytesIn += other.myBytesIn;
+		myBytesOut += other.myBytesOut;
+		myPeakBufferBytes = Math.max(myPeakBufferBytes, other.myPeakBufferBytes);
+		mySymbols += other.mySymbols;
+		myCodeBits += other.myCodeBits;
+		myExactCodeBits += other.myExactCodeBits;
+		myStoredBytes += other.myStoredBytes;
+		myTables += other.myTables;
+		myLimitedCodeBits += other.myLimitedCodeBits;
+		myUnlimitedCodeBits += other.myUnlimitedCodeBits;
+		for (int k = 0; k < myCounts.length; k++) {
+			myCounts[k] += other.myCounts[k];
+		}
+		for (int k = 0; k < myLengthHistogram.length; k++) {
+			myLengthHistogram[k] += other.myLengthHistogram[k];
+		}
+	}
+
+	/**
+	 * @return average code bits per symbol coded, headers not included,
+	 * or 0 if no symbols were counted
+	 */
+	public double bitsPerSymbol() {
+		return mySymbols == 0 ? 0 : (double) myCodeBits / mySymbols;
+	}
+
+	/**
+	 * @return how much larger the codes were than an exact tree's, e.g.,
+	 * 0.01 for 1%, or 0 if myExactCodeBits was not filled in
+	 */
+	public double samplingLoss() {
+		return myExactCodeBits == 0 ? 0 : (double) (myCodeBits - myExactCodeBits) / myExactCodeBits;
+	}
+
+	/**
+	 * @return how much larger the limited codes were than unlimited ones
+	 * would have been, e.g., 0.01 for 1%, or 0 if no code was limited
+	 */
+	public double limitLoss() {
+		return myUnlimitedCodeBits == 0 ? 0 : (double) (myLimitedCodeBits - myUnlimitedCodeBits) / myUnlimitedCodeBits;
+	}
+
+	/**
+	 * @return order-0 entropy of the symbols counted in bits per symbol,
+	 * the least bitsPerSymbol any code for one table could have
+	 */
+	public double entropy() {
+		double sum = 0;
+		for (long count : myCounts) {
+			if (count > 0) {
+				sum -= count * Math.log((double) count / mySymbols);
+			}
+		}
+		return mySymbols == 0 ? 0 : sum / mySymbols / Math.log(2);
+	}
+
+	/**
+	 * @return every measurement by name, in a fixed order; histogram
+	 * entries are named codeLength.n and only non-zero ones are included
+	 */
+	public Map<String, Number> toMap() {
+		Map<String, Number> map = new LinkedHashMap<>();
+		map.put("countNanos", myCountNanos);
+		map.put("treeNanos", myTreeNanos);
+		map.put("headerNanos", myHeaderNanos);
+		map.put("encodeNanos", myEncodeNanos);
+		map.put("decodeNanos", myDecodeNanos);
+		map.put("bytesIn", myBytesIn);
+		map.put("bytesOut", myBytesOut);
+		map.put("peakBufferBytes", myPeakBufferBytes);
+		map.put("symbols", mySymbols);
+		map.put("codeBits", myCodeBits);
+		map.put("storedBytes", myStoredBytes);
+		map.put("bitsPerSymbol", bitsPerSymbol());
+		map.put("entropy", entropy());
+		if (myTables > 0) {
+			map.put("tables", myTables);
+		}
+		if (myLimitedCodeBits > 0) {
+			map.put("limitedCodeBits", myLimitedCodeBits);
+			map.put("unlimitedCodeBits", myUnlimitedCodeBits);
+			map.put("limitLoss", limitLoss());
+		}
+		if (myExactCodeBits > 0) {
+			map.put("exactCodeBits", myExactCodeBits);
+			map.put("samplingLoss", samplingLoss());
+		}
+		for (int length = 0; length < myLengthHistogram.length; length++) {
+			if (myLengthHistogram[length] > 0) {
+				map.put("codeLength." + length, myLengthHistogram[length]);
+			}
+		}
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return toMap().toString();
+	}
+}
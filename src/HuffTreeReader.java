@@ -0,0 +1,95 @@
+import java.util.*;
+
+/**
+ * Reads tree headers, as HuffProcessor writes them, straight into flat
+ * code and code-length arrays and a table-driven HuffDecoder, without
+ * building a tree of HuffNode objects or recursing.
+ * <P>
+ * The header is the tree in preorder, a single bit of zero for an
+ * internal node and a 1 followed by 9 bits of value for a leaf. The
+ * reader walks it with an explicit stack of the right children still to
+ * be visited; since no code may be longer than MAX_CODE_LENGTH bits the
+ * stack never holds more than that many entries, however the header is
+ * crafted. All arrays, and the decoder, are reused from one header to
+ * the next, so a reader decoding many small files or blocks does not
+ * allocate. A reader is not thread-safe; use one per thread.
+ */
+
+public class HuffTreeReader {
+
+	private final int[] myCodes = new int[HuffProcessor.ALPH_SIZE + 1];
+	private final byte[] myLengths = new byte[HuffProcessor.ALPH_SIZE + 1];
+	private final int[] myPendingCodes = new int[HuffCodebook.MAX_CODE_LENGTH + 1];
+	private final int[] myPendingDepths = new int[HuffCodebook.MAX_CODE_LENGTH + 1];
+	private final HuffDecoder myDecoder = new HuffDecoder();
+
+	/**
+	 * Read one tree header and rebuild the decoder for it
+	 * @param in is positioned at the first bit of the header
+	 * @return this reader's decoder, valid until the next call
+	 * @throws HuffException if the header is truncated, has a leaf value
+	 * over PSEUDO_EOF or twice, a root that is a leaf other than
+	 * PSEUDO_EOF, or a code longer than MAX_CODE_LENGTH
+	 */
+	public HuffDecoder read(BitInputStream in) {
+		parse(in);
+		myDecoder.rebuild(myCodes, myLengths);
+		return myDecoder;
+	}
+
+	/**
+	 * Read one tree header and find its decoder in cache, building it
+	 * only if the cache has not seen these codes
+	 * @param in is positioned at the first bit of the header
+	 * @param cache holds decoders for headers read before
+	 * @return the cached decoder for the header, which may be kept
+	 * @throws HuffException as for read(in)
+	 */
+	public HuffDecoder read(BitInputStream in, HuffCodebookCache cache) {
+		parse(in);
+		return cache.decoder(myCodes, myLengths);
+	}
+
+	/**
+	 * Fill myCodes and myLengths from one tree header
+	 */
+	private void parse(BitInputStream in) {
+
+		Arrays.fill(myLengths, (byte) 0);
+		int pending = 0;
+		int code = 0, depth = 0;
+		while (true) {
+			int bit = in.readBits(1);
+			if (bit == -1) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+
+			if (bit == 0) {
+				if (depth == HuffCodebook.MAX_CODE_LENGTH) {
+					throw new HuffException("bad input, code longer than " + HuffCodebook.MAX_CODE_LENGTH + " bits");
+				}
+				depth++;
+				myPendingCodes[pending] = (code << 1) | 1;
+				myPendingDepths[pending] = depth;
+				pending++;
+				code <<= 1;
+				continue;
+			}
+
+			int value = in.readBits(HuffProcessor.BITS_PER_WORD + 1);
+			if (value < 0 || value > HuffProcessor.PSEUDO_EOF || myLengths[value] != 0) {
+				throw new HuffException("bad input, leaf value " + value);
+			}
+			if (depth == 0 && value != HuffProcessor.PSEUDO_EOF) {
+				throw new HuffException("bad input, root is leaf value " + value);
+			}
+			myCodes[value] = code;
+			myLengths[value] = (byte) depth;
+
+			if (pending == 0) break;
+			pending--;
+			code = myPendingCodes[pending];
+			depth = myPendingDepths[pending];
+		}
+	}
+}
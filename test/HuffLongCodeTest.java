@@ -0,0 +1,120 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Checks that codes of the full MAX_CODE_LENGTH bits round-trip. The
+ * input has 32 byte values whose counts follow the Fibonacci sequence,
+ * which with PSEUDO_EOF makes the optimal tree a chain 32 levels deep,
+ * so the longest canonical code is 32 one bits. Each compressor that
+ * builds static codes must use that code, and its output must
+ * decompress to the input. Run with no libraries beyond the JDK:
+ * <pre>
+ *   javac -d classes src/*.java test/*.java
+ *   java -cp classes HuffLongCodeTest
+ * </pre>
+ * Exits with status 1, after printing what went wrong, if the check fails.
+ */
+
+public class HuffLongCodeTest {
+
+	private static final int VALUES = 32;
+	private static final int LIMIT = 16;
+
+	private interface Compressor {
+		HuffStats compress(HuffProcessor processor, BitInputStream in, BitOutputStream out);
+	}
+
+	public static void main(String[] args) {
+
+		byte[] data = fibonacci();
+		for (int maxCodeLength : new int[] { HuffCodebook.MAX_CODE_LENGTH, LIMIT }) {
+			check("compress", data, maxCodeLength, (p, in, out) -> p.compress(in, out));
+			check("compressCanonical", data, maxCodeLength, (p, in, out) -> p.compressCanonical(in, out));
+			check("compressBlocks", data, maxCodeLength,
+					(p, in, out) -> p.compressBlocks(in, out, HuffProcessor.MAX_BLOCK_SIZE));
+			check("compressContext", data, maxCodeLength, (p, in, out) -> p.compressContext(in, out));
+		}
+		System.out.printf("HuffLongCodeTest OK: %d bytes with %d-bit and %d-bit limited codes\n", data.length,
+				HuffCodebook.MAX_CODE_LENGTH, LIMIT);
+	}
+
+	/**
+	 * Compress data with codes of at most maxCodeLength bits, and check
+	 * that a code of that length was used, that the stats report the cost
+	 * of limiting when it is less than the optimal 32 bits, and that the
+	 * output decompresses to data
+	 */
+	private static void check(String name, byte[] data, int maxCodeLength, Compressor compressor) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		HuffStats stats;
+		try {
+			HuffProcessor processor = new HuffProcessor(0, maxCodeLength);
+			stats = compressor.compress(processor, new BitInputStream(new ByteArrayInputStream(data)),
+					new BitOutputStream(bytes));
+		}
+		catch (RuntimeException e) {
+			fail(name + " threw " + e);
+			return;
+		}
+		name += " limited to " + maxCodeLength + " bits";
+		if (stats.myLengthHistogram[maxCodeLength] == 0) {
+			fail(name + " used no " + maxCodeLength + "-bit code, so the test input is wrong");
+		}
+		boolean limited = maxCodeLength < HuffCodebook.MAX_CODE_LENGTH;
+		if (limited != stats.myLimitedCodeBits > stats.myUnlimitedCodeBits) {
+			fail(name + " reported " + stats.myLimitedCodeBits + " limited and " + stats.myUnlimitedCodeBits
+					+ " unlimited code bits");
+		}
+
+		byte[] decoded;
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new HuffProcessor().decompress(new BitInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+					new BitOutputStream(out));
+			decoded = out.toByteArray();
+		}
+		catch (RuntimeException e) {
+			fail(name + " output does not decompress: " + e);
+			return;
+		}
+		if (!Arrays.equals(data, decoded)) {
+			fail(name + " output decompresses to different bytes, first at "
+					+ Arrays.mismatch(data, decoded));
+		}
+	}
+
+	/**
+	 * @return value v repeated F(v + 2) times for v on [0, VALUES), where
+	 * F(1) = F(2) = 1, in a fixed shuffled order; with PSEUDO_EOF's count
+	 * of 1 the two smallest counts are the only tie
+	 */
+	private static byte[] fibonacci() {
+		long[] counts = new long[VALUES];
+		long total = 0;
+		for (int value = 0; value < VALUES; value++) {
+			counts[value] = value < 2 ? value + 1 : counts[value - 1] + counts[value - 2];
+			total += counts[value];
+		}
+		byte[] data = new byte[(int) total];
+		int k = 0;
+		for (int value = 0; value < VALUES; value++) {
+			for (long count = counts[value]; count > 0; count--) {
+				data[k++] = (byte) value;
+			}
+		}
+		Random random = new Random(1);
+		for (k = data.length - 1; k > 0; k--) {
+			int other = random.nextInt(k + 1);
+			byte swap = data[k];
+			data[k] = data[other];
+			data[other] = swap;
+		}
+		return data;
+	}
+
+	private static void fail(String message) {
+		System.out.println("HuffLongCodeTest FAILED: " + message);
+		System.exit(1);
+	}
+}
@@ -0,0 +1,126 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks that compressParallel with a shared HuffCodebookCache writes the
+ * same bytes whatever the number of threads. Each run starts from a
+ * fresh cache warmed the same way, so every run sees the same cache
+ * contents, and compresses input whose blocks are alike enough for the
+ * cache to hand codebooks from one block to the next. Run with no
+ * libraries beyond the JDK:
+ * <pre>
+ *   javac -d classes src/*.java test/*.java
+ *   java -cp classes HuffParallelCacheTest
+ * </pre>
+ * Exits with status 1, after printing what differed, if the check fails.
+ */
+
+public class HuffParallelCacheTest {
+
+	private static final int BLOCK_SIZE = 1 << 14;
+	private static final int BLOCKS = 256;
+	private static final int VALUES = 9;
+	private static final int CACHE_SIZE = 64;
+	private static final double TOLERANCE = 0.01;
+	private static final int[] THREADS = { 1, 2, 4, 8 };
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) throws InterruptedException {
+
+		byte[] warmup = blocks(1);
+		byte[] data = blocks(2);
+
+		byte[] expected = null;
+		for (int threads : THREADS) {
+			for (int run = 0; run < RUNS; run++) {
+				HuffCodebookCache cache = new HuffCodebookCache(CACHE_SIZE, TOLERANCE);
+				compressBlocks(warmup, cache);
+				long hits = cache.hits();
+				byte[] compressed = compressParallel(data, cache, threads);
+				if (cache.hits() == hits) {
+					fail("no block reused a cached codebook, so the cache was not exercised");
+				}
+				if (expected == null) {
+					expected = compressed;
+				}
+				else if (!Arrays.equals(expected, compressed)) {
+					fail(threads + " threads, run " + run + ": output differs from 1 thread at byte "
+							+ Arrays.mismatch(expected, compressed));
+				}
+			}
+		}
+		if (!Arrays.equals(data, decompress(expected))) {
+			fail("output does not decompress to the input");
+		}
+		System.out.printf("HuffParallelCacheTest OK: %d bytes to %d on %s threads\n", data.length,
+				expected.length, Arrays.toString(THREADS));
+	}
+
+	/**
+	 * @return BLOCKS blocks of VALUES values, where value v makes up
+	 * about 2^-(v + 1.5) of a block and the last value the rest, each
+	 * count varied by up to 15% per block and the bytes shuffled. Every
+	 * count stays between the same powers of two, so all blocks have the
+	 * same cache signature, but their optimal codes are not all the same.
+	 */
+	private static byte[] blocks(long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[BLOCK_SIZE * BLOCKS];
+		for (int block = 0; block < BLOCKS; block++) {
+			int start = block * BLOCK_SIZE, k = start;
+			for (int value = 0; value < VALUES - 1; value++) {
+				double share = Math.pow(2, -(value + 1.5)) * (0.85 + 0.3 * random.nextDouble());
+				for (long count = Math.round(share * BLOCK_SIZE); count > 0; count--) {
+					data[k++] = (byte) ('a' + value);
+				}
+			}
+			while (k < start + BLOCK_SIZE) {
+				data[k++] = (byte) ('a' + VALUES - 1);
+			}
+			for (k = start + BLOCK_SIZE - 1; k > start; k--) {
+				int other = start + random.nextInt(k - start + 1);
+				byte swap = data[k];
+				data[k] = data[other];
+				data[other] = swap;
+			}
+		}
+		return data;
+	}
+
+	private static void compressBlocks(byte[] data, HuffCodebookCache cache) {
+		HuffProcessor processor = new HuffProcessor(0, HuffCodebook.MAX_CODE_LENGTH,
+				HuffDictionaryRegistry.shared(), cache);
+		processor.compressBlocks(new BitInputStream(new ByteArrayInputStream(data)),
+				new BitOutputStream(new ByteArrayOutputStream()), BLOCK_SIZE);
+	}
+
+	private static byte[] compressParallel(byte[] data, HuffCodebookCache cache, int threads)
+			throws InterruptedException {
+		HuffProcessor processor = new HuffProcessor(0, HuffCodebook.MAX_CODE_LENGTH,
+				HuffDictionaryRegistry.shared(), cache);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			processor.compressParallel(new BitInputStream(new ByteArrayInputStream(data)),
+					new BitOutputStream(bytes), BLOCK_SIZE, pool);
+		}
+		finally {
+			pool.shutdown();
+			pool.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] decompress(byte[] data) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new HuffProcessor().decompress(new BitInputStream(new ByteArrayInputStream(data)),
+				new BitOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private static void fail(String message) {
+		System.out.println("HuffParallelCacheTest FAILED: " + message);
+		System.exit(1);
+	}
+}